@@ -0,0 +1,63 @@
+package fun.xiantiao.mcpacker.benchmark;
+
+import fun.xiantiao.mcpacker.Main;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 完整运行一次 {@link Main}: 备份, 清空, 复制, 替换
+ * <p>
+ * Main 的路径在类加载时确定, 每个 fork 只能使用一个数据文件夹, 所以数据文件夹在 Main 加载前通过 mcp.dataFolder 指定
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({"4"})
+    public int servers;
+
+    @Param({"50"})
+    public int files;
+
+    @Param({"16"})
+    public int placeholders;
+
+    @Param({"16384"})
+    public int fileSize;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path root;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("mcp-bench");
+        SyntheticPack.generate(root, servers, files, placeholders, fileSize, threads);
+        System.setProperty("mcp.dataFolder", root.toString());
+    }
+
+    @Setup(Level.Invocation)
+    public void clean() throws IOException {
+        // 备份会越来越多, 不计入测量
+        SyntheticPack.deleteRecursively(root.resolve("backup"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticPack.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public void main() throws IOException {
+        Main.main(new String[0]);
+    }
+}
@@ -0,0 +1,156 @@
+package fun.xiantiao.mcpacker.benchmark;
+
+import com.google.gson.JsonObject;
+import fun.xiantiao.mcpacker.enums.ContentType;
+import fun.xiantiao.mcpacker.enums.PlaceholderType;
+import fun.xiantiao.mcpacker.records.Placeholder;
+import fun.xiantiao.mcpacker.records.PlaceholderToken;
+import fun.xiantiao.mcpacker.utils.ContentSniffer;
+import fun.xiantiao.mcpacker.utils.PlaceholderRenderer;
+import fun.xiantiao.mcpacker.utils.PlaceholdersUtils;
+import fun.xiantiao.mcpacker.utils.SettingsResolver;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个文件的扫描/替换和取值
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlaceholderBenchmark {
+
+    @Param({"16", "256"})
+    public int placeholders;
+
+    @Param({"4096", "1048576"})
+    public int fileSize;
+
+    private String content;
+    private JsonObject rawSettings;
+    private JsonObject settings;
+    private PlaceholdersUtils placeholdersUtils;
+    private PlaceholderRenderer renderer;
+    private PlaceholderRenderer structuredRenderer;
+    private Path file;
+    private Path plainFile;
+    private String[] keys;
+
+    @Setup
+    public void setup() throws IOException {
+        content = SyntheticPack.content(placeholders, fileSize);
+        rawSettings = SyntheticPack.settings(placeholders);
+        settings = SettingsResolver.resolve(rawSettings);
+        placeholdersUtils = new PlaceholdersUtils(settings);
+        renderer = new PlaceholderRenderer(placeholdersUtils);
+        JsonObject structuredSettings = settings.deepCopy();
+        structuredSettings.getAsJsonObject("placeholder").addProperty("structured", true);
+        structuredRenderer = new PlaceholderRenderer(new PlaceholdersUtils(structuredSettings));
+        file = Files.createTempFile("mcp-bench", ".yml");
+        Files.writeString(file, content);
+        // 大小相同但没有 papi, 需要扫描整个文件
+        plainFile = Files.createTempFile("mcp-bench", ".yml");
+        Files.writeString(plainFile, content.replace("$(mcp.", "$(mcx."));
+        keys = new String[placeholders];
+        for (int i = 0; i < placeholders; i++) {
+            keys[i] = "key" + i;
+        }
+    }
+
+    @Benchmark
+    public Set<Placeholder> extractText() {
+        return extractPlaceholderValues(content, PlaceholderType.Text);
+    }
+
+    @Benchmark
+    public Set<Placeholder> extractNumber() {
+        return extractPlaceholderValues(content, PlaceholderType.Number);
+    }
+
+    @Benchmark
+    public List<PlaceholderToken> tokenize() {
+        return PlaceholderRenderer.tokenize(content);
+    }
+
+    @Benchmark
+    public String render() {
+        return renderer.render(content);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(plainFile);
+    }
+
+    @Benchmark
+    public int renderFileText() throws IOException {
+        return renderer.renderTo(file, OutputStream.nullOutputStream(), null, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public int renderFileStructured() throws IOException {
+        return structuredRenderer.renderTo(file, OutputStream.nullOutputStream(), null, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public ContentType sniffPlain() throws IOException {
+        return ContentSniffer.sniff(plainFile);
+    }
+
+    @Benchmark
+    public int renderFilePlain() throws IOException {
+        return renderer.renderTo(plainFile, OutputStream.nullOutputStream(), null, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void get(Blackhole blackhole) {
+        for (String key : keys) {
+            blackhole.consume(placeholdersUtils.get(key));
+        }
+    }
+
+    @Benchmark
+    public PlaceholdersUtils index() {
+        return new PlaceholdersUtils(settings);
+    }
+
+    @Benchmark
+    public JsonObject resolveSettings() {
+        return SettingsResolver.resolve(rawSettings);
+    }
+
+    /**
+     * 旧版按类型提取 papi 的方式, 只用于对比扫描开销
+     *
+     * @param input 文件内容
+     * @param type  {@link PlaceholderType#Number} 返回所有 $(mcp.x)(number);
+     *              {@link PlaceholderType#Text} 返回没有以 (number) 形式出现过的 $(mcp.x)
+     * @return 匹配的 papi
+     */
+    private static Set<Placeholder> extractPlaceholderValues(String input, PlaceholderType type) {
+        Set<Placeholder> numbers = new HashSet<>();
+        Set<Placeholder> texts = new HashSet<>();
+        for (PlaceholderToken token : PlaceholderRenderer.tokenize(input)) {
+            (token.placeholder().type() == PlaceholderType.Number ? numbers : texts).add(token.placeholder());
+        }
+
+        if (type == PlaceholderType.Number) {
+            return numbers;
+        }
+        texts.removeIf(placeholder -> numbers.contains(new Placeholder(placeholder.text(), PlaceholderType.Number)));
+        return texts;
+    }
+}
@@ -0,0 +1,113 @@
+package fun.xiantiao.mcpacker.benchmark;
+
+import com.google.gson.JsonObject;
+import fun.xiantiao.mcpacker.enums.MaterializationStrategy;
+import fun.xiantiao.mcpacker.records.BackupSettings;
+import fun.xiantiao.mcpacker.records.BuildSettings;
+import fun.xiantiao.mcpacker.utils.BackupCompressor;
+import fun.xiantiao.mcpacker.utils.ParallelExecutor;
+import fun.xiantiao.mcpacker.utils.PlaceholderRenderer;
+import fun.xiantiao.mcpacker.utils.PlaceholdersUtils;
+import fun.xiantiao.mcpacker.utils.SettingsResolver;
+import fun.xiantiao.mcpacker.utils.Tool;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 整个整合包的各个阶段: 复制, 替换, 压缩备份
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StageBenchmark {
+
+    @Param({"4"})
+    public int servers;
+
+    @Param({"50"})
+    public int files;
+
+    @Param({"16"})
+    public int placeholders;
+
+    @Param({"16384"})
+    public int fileSize;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path root;
+    private Path source;
+    private Path target;
+    private Path zip;
+    private BuildSettings buildSettings;
+    private BackupSettings backupSettings;
+    private PlaceholderRenderer renderer;
+    private List<Path> templates;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("mcp-bench");
+        SyntheticPack.generate(root, servers, files, placeholders, fileSize, threads);
+        source = root.resolve("default");
+        target = root.resolve("built");
+        zip = root.resolve("backup.zip");
+
+        JsonObject settings = SyntheticPack.settings(placeholders);
+        JsonObject build = new JsonObject();
+        build.addProperty("threads", threads);
+        settings.add("build", build);
+        JsonObject backup = new JsonObject();
+        backup.addProperty("threads", threads);
+        settings.add("backup", backup);
+
+        settings = SettingsResolver.resolve(settings);
+        buildSettings = BuildSettings.of(settings);
+        backupSettings = BackupSettings.of(settings);
+        renderer = new PlaceholderRenderer(new PlaceholdersUtils(settings));
+        templates = Tool.getSubfolders(source, true, buildSettings.suffixes());
+    }
+
+    @Setup(Level.Invocation)
+    public void clean() throws IOException {
+        SyntheticPack.deleteRecursively(target);
+        Files.deleteIfExists(zip);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticPack.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public void copy() throws IOException {
+        Tool.copyDirectory(source, target, buildSettings.suffixes(), MaterializationStrategy.Copy);
+    }
+
+    @Benchmark
+    public void hardLink() throws IOException {
+        Tool.copyDirectory(source, target, buildSettings.suffixes(), MaterializationStrategy.HardLink);
+    }
+
+    @Benchmark
+    public void render() throws IOException {
+        ParallelExecutor.forEach(templates, threads, path -> {
+            Path output = target.resolve(source.relativize(path));
+            Files.createDirectories(output.getParent());
+            renderer.renderFile(path, output, null, buildSettings.streamingThreshold());
+        });
+    }
+
+    @Benchmark
+    public void compress() throws IOException {
+        new BackupCompressor(backupSettings).compress(source, zip);
+    }
+}
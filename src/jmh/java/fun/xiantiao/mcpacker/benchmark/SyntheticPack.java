@@ -0,0 +1,112 @@
+package fun.xiantiao.mcpacker.benchmark;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * 生成基准测试用的整合包
+ * <p>
+ * default/files 下 files 个文件, default/servers 下 servers 个服务端各 files 个文件,
+ * 每个服务端另有一个同样大小的不替换文件 (world.mca); 每个文件 fileSize 字节左右, 均匀分布 placeholders 个 papi,
+ * 每四个 papi 中有一个为 "$(mcp.x)(number)"
+ */
+public final class SyntheticPack {
+
+    private SyntheticPack() {
+    }
+
+    /**
+     * 在 root 下生成 default 和 mcp.build.setting.json
+     */
+    public static void generate(@NotNull Path root, int servers, int files, int placeholders, int fileSize,
+                                int threads) throws IOException {
+        Path defaultFolder = root.resolve("default");
+        Files.createDirectories(root.resolve("built"));
+        writeFiles(defaultFolder.resolve("files"), files, placeholders, fileSize);
+        for (int i = 0; i < servers; i++) {
+            Path server = defaultFolder.resolve("servers").resolve("server-" + i);
+            writeFiles(server, files, placeholders, fileSize);
+            byte[] binary = new byte[fileSize];
+            new Random(i).nextBytes(binary);
+            Files.write(server.resolve("world.mca"), binary);
+        }
+
+        JsonObject settings = settings(placeholders);
+        JsonObject build = new JsonObject();
+        build.addProperty("threads", threads);
+        settings.add("build", build);
+        Files.writeString(root.resolve("mcp.build.setting.json"), settings.toString());
+    }
+
+    /**
+     * @return 包含 placeholders 个 key 的设置
+     */
+    public static @NotNull JsonObject settings(int placeholders) {
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < placeholders; i++) {
+            if (i % 4 == 0) {
+                data.addProperty("key" + i, i);
+            } else {
+                data.addProperty("key" + i, "value-" + i);
+            }
+        }
+        JsonArray suffixes = new JsonArray();
+        suffixes.add(".yml");
+        JsonObject placeholder = new JsonObject();
+        placeholder.add("suffixes", suffixes);
+        placeholder.add("data", data);
+        JsonObject settings = new JsonObject();
+        settings.add("placeholder", placeholder);
+        return settings;
+    }
+
+    /**
+     * @return 大约 size 个字符, 均匀分布 placeholders 个 papi 的 yml 文本
+     */
+    public static @NotNull String content(int placeholders, int size) {
+        StringBuilder builder = new StringBuilder(size + 64);
+        int line = 0;
+        int next = 0;
+        while (builder.length() < size || next < placeholders) {
+            // 按已写入的比例放置 papi
+            if (next < placeholders && (long) builder.length() * placeholders >= (long) next * size) {
+                if (next % 4 == 0) {
+                    builder.append("number").append(next).append(": \"$(mcp.key").append(next).append(")(number)\"\n");
+                } else {
+                    builder.append("text").append(next).append(": $(mcp.key").append(next).append(")\n");
+                }
+                next++;
+            } else {
+                builder.append("line").append(line++).append(": lorem ipsum dolor sit amet\n");
+            }
+        }
+        return builder.toString();
+    }
+
+    public static void deleteRecursively(@NotNull Path root) throws IOException {
+        if (Files.notExists(root)) {
+            return;
+        }
+        try (Stream<Path> stream = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) stream.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static void writeFiles(@NotNull Path folder, int files, int placeholders, int fileSize) throws IOException {
+        Files.createDirectories(folder);
+        String content = content(placeholders, fileSize);
+        for (int i = 0; i < files; i++) {
+            Files.writeString(folder.resolve("config-" + i + ".yml"), content);
+        }
+    }
+}
@@ -1,22 +1,43 @@
 package fun.xiantiao.mcpacker;
 
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import fun.xiantiao.mcpacker.enums.PlaceholderType;
-import fun.xiantiao.mcpacker.records.Placeholder;
+import fun.xiantiao.mcpacker.enums.BackupMode;
+import fun.xiantiao.mcpacker.enums.ContentType;
+import fun.xiantiao.mcpacker.enums.OutputFormat;
+import fun.xiantiao.mcpacker.records.BackupSettings;
+import fun.xiantiao.mcpacker.records.BuildSettings;
+import fun.xiantiao.mcpacker.records.PlaceholderToken;
+import fun.xiantiao.mcpacker.utils.ArchiveBuilder;
+import fun.xiantiao.mcpacker.utils.Arguments;
+import fun.xiantiao.mcpacker.utils.BackupCompressor;
+import fun.xiantiao.mcpacker.utils.BackupStore;
+import fun.xiantiao.mcpacker.utils.BuildDaemon;
+import fun.xiantiao.mcpacker.utils.BuildManifest;
+import fun.xiantiao.mcpacker.utils.BuildMetrics;
+import fun.xiantiao.mcpacker.utils.BuildPublisher;
+import fun.xiantiao.mcpacker.utils.BuildWatcher;
+import fun.xiantiao.mcpacker.utils.FileTreeSnapshot;
+import fun.xiantiao.mcpacker.utils.IncrementalBuilder;
+import fun.xiantiao.mcpacker.utils.ParallelExecutor;
+import fun.xiantiao.mcpacker.utils.PlaceholderIndex;
+import fun.xiantiao.mcpacker.utils.PlaceholderRenderer;
 import fun.xiantiao.mcpacker.utils.PlaceholdersUtils;
+import fun.xiantiao.mcpacker.utils.SettingsResolver;
+import fun.xiantiao.mcpacker.utils.TargetBuilder;
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
-import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
-import java.util.regex.Matcher;
 
 import static fun.xiantiao.mcpacker.utils.Tool.*;
 import static fun.xiantiao.mcpacker.utils.Tool.copyDirectory;
@@ -31,68 +52,261 @@ public class Main {
     private static final Path PATH_BUILT = getDataFolder().resolve("built");
     private static final Path PATH_BUILT_FILES = PATH_BUILT.resolve("files");
     private static final Path PATH_BUILT_SERVERS = PATH_BUILT.resolve("servers");
+    private static final Path PATH_GENERATIONS = getDataFolder().resolve(".mcp.generations");
+
+    private static final Path PATH_SETTINGS = getDataFolder().resolve("mcp.build.setting.json");
+    private static final Path PATH_MANIFEST = getDataFolder().resolve(".mcp.build.manifest.json");
+    private static final Path PATH_INDEX = getDataFolder().resolve(".mcp.build.index.json");
 
     private static final Path PATH_BACKUP = getDataFolder().resolve("backup");
     private static final Path PATH_BACKUP_DEFAULT = PATH_BACKUP.resolve("default");
     private static final Path PATH_BACKUP_BUILT = PATH_BACKUP.resolve("built");
+    private static final Path PATH_BACKUP_STORE = PATH_BACKUP.resolve("store");
+
+    private static final Path PATH_ARCHIVE = getDataFolder().resolve("archive");
+    private static final Path PATH_RESTORED = getDataFolder().resolve("restored");
+    private static final Path PATH_METRICS = getDataFolder().resolve("metrics");
+    private static final Path PATH_DAEMON_SOCKET = getDataFolder().resolve(DaemonClient.SOCKET_NAME);
+
+    // 守护进程中复用的设置和索引, 文件变化后重新读取
+    private static volatile Loaded<JsonObject> loadedSettings;
+    private static volatile Loaded<PlaceholderIndex> loadedIndex;
+
+    private record Loaded<T>(FileTime modified, long size, T value) {
+        boolean isCurrent(@NotNull Path path) throws IOException {
+            return Files.getLastModifiedTime(path).equals(modified) && Files.size(path) == size;
+        }
+    }
 
     public static void main(String[] args) throws IOException {
+        // --client 参数... 交给守护进程执行
+        if (args.length > 0 && "--client".equals(args[0])) {
+            System.exit(DaemonClient.run(PATH_DAEMON_SOCKET, Arrays.copyOfRange(args, 1, args.length)));
+        }
+
         logger.info("Starting...");
+        Arguments arguments = Arguments.parse(args);
+
+        // --daemon 常驻, 执行 DaemonClient 发来的命令
+        if (arguments.has("daemon")) {
+            initDirectories();
+            extractResourceFile(Main.class, "/mcp.build.setting.json", getDataFolder().toString());
+            new BuildDaemon(PATH_DAEMON_SOCKET, clientArgs -> {
+                Arguments clientArguments = Arguments.parse(clientArgs);
+                for (String option : List.of("watch", "daemon", "client")) {
+                    if (clientArguments.has(option)) {
+                        throw new IllegalArgumentException("--" + option + " is not supported through the daemon");
+                    }
+                }
+                execute(clientArguments);
+            }).run();
+        } else {
+            execute(arguments);
+        }
+
+        logger.info("Stopped.");
+    }
+
+    private static void execute(@NotNull Arguments arguments) throws IOException {
+        // --verbose 输出逐个文件的日志 (DEBUG), 守护进程中只对这一次命令生效
+        if (!arguments.has("verbose")) {
+            executeCommand(arguments);
+            return;
+        }
+        Level level = LogManager.getRootLogger().getLevel();
+        Configurator.setRootLevel(Level.DEBUG);
+        try {
+            executeCommand(arguments);
+        } finally {
+            Configurator.setRootLevel(level);
+        }
+    }
 
+    private static void executeCommand(@NotNull Arguments arguments) throws IOException {
         initDirectories();
         extractResourceFile(Main.class, "/mcp.build.setting.json", getDataFolder().toString());
 
-        JsonObject settings = loadSettings();
-        PlaceholdersUtils placeholdersUtils = new PlaceholdersUtils(settings);
-
-        //backup
-        compressFolder(PATH_DEFAULT, PATH_BACKUP_DEFAULT.resolve(getZipFileName()));
-        compressFolder(PATH_BUILT, PATH_BACKUP_BUILT.resolve(getZipFileName()));
-
-        // 清空built
-        deleteFolder(PATH_BUILT);
-        // 复制到built
-        copyDirectory(PATH_DEFAULT, PATH_BUILT);
-
-        List<String> suffixes = new ArrayList<>();
-        for (JsonElement element : Objects.requireNonNull(getValueByPath(settings, "placeholder.suffixes")).getAsJsonArray()) {
-            suffixes.add(element.getAsString());
-        }
-
-        // placeholder
-        {
-            getSubfolders(PATH_BUILT, true, suffixes).forEach(path -> {
-                logger.info("placeholder {}", path);
-                try {
-                    String body = readFileToString(path); // 文件内容
-                    String newBody = body;                // 新文件内容
-                    {
-                        Set<Placeholder> strings = extractPlaceholderValues(body, PlaceholderType.Text); // body内的papi
-                        for (Placeholder placeholder : strings) {
-                            String papied = placeholdersUtils.get(placeholder.text()); // 获取值
-                            newBody = newBody.replaceAll("\\$\\(mcp\\."+placeholder.text()+"\\)", Matcher.quoteReplacement(papied));
-                            writeFileOverwrite(path, newBody);
-                        }
-                    }
+        BuildMetrics metrics = new BuildMetrics();
+        JsonObject rawSettings;
+        BuildSettings buildSettings;
+        PlaceholdersUtils placeholdersUtils;
+        BackupSettings backupSettings;
+        // 只计时, 没有逐文件的统计
+        BuildMetrics.Stage settingsStage = metrics.stage("settings", null);
+        try {
+            rawSettings = readSettings();
+            JsonObject settings = SettingsResolver.resolve(rawSettings);
+            buildSettings = BuildSettings.of(settings);
+            placeholdersUtils = new PlaceholdersUtils(settings);
+            backupSettings = BackupSettings.of(settings);
+        } finally {
+            settingsStage.close();
+        }
+
+        // --restore 快照名称 [目标文件夹]
+        if (arguments.has("restore")) {
+            restore(new BackupStore(PATH_BACKUP_STORE, backupSettings), arguments.values("restore"));
+            return;
+        }
 
-                    {
-                        Set<Placeholder> strings = extractPlaceholderValues(body, PlaceholderType.Number); // body内的papi
-                        for (Placeholder placeholder : strings) {
-                            String papied = placeholdersUtils.get(placeholder.text()); // 获取值
-                            newBody = newBody.replaceAll("\"\\$\\(mcp\\."+placeholder.text()+"\\)\\(number\\)\"", Matcher.quoteReplacement(papied));
-                            writeFileOverwrite(path, newBody);
-                        }
+        // --where [papi路径...] 查询使用 papi 的文件, 不带参数时列出没有被使用的 papi
+        if (arguments.has("where")) {
+            where(placeholdersUtils, arguments.values("where"));
+            return;
+        }
+
+        // --watch [合并变化的等待时间(毫秒)]
+        boolean watch = arguments.has("watch");
+
+        // --servers [名称,...] 按服务端构建, 不带参数时构建全部服务端
+        boolean targets = buildSettings.targets() || arguments.has("servers");
+        List<String> servers = null;
+        if (arguments.has("servers") && !arguments.values("servers").isEmpty()) {
+            servers = new ArrayList<>();
+            for (String value : arguments.values("servers")) {
+                for (String server : value.split(",")) {
+                    if (!server.isBlank()) {
+                        servers.add(server.trim());
                     }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
                 }
-            });
+            }
+        }
+        if (targets && watch) {
+            logger.warn("Watch mode does not support build targets, building the whole tree.");
+            targets = false;
         }
 
-        logger.info("Stopped.");
+        // --output dir|zip|tar.gz 直接写入压缩包, 不经过 built
+        OutputFormat output = arguments.value("output") != null ? OutputFormat.of(arguments.value("output")) : buildSettings.output();
+        if (output != OutputFormat.Directory && watch) {
+            logger.warn("Watch mode does not support archive output, building into built.");
+            output = OutputFormat.Directory;
+        }
+
+        try {
+            // 遍历一次, 备份, 复制和替换共用
+            FileTreeSnapshot defaultTree;
+            FileTreeSnapshot builtTree;
+            BuildMetrics.Stage scanStage = metrics.stage("scan", null);
+            try {
+                defaultTree = FileTreeSnapshot.walk(PATH_DEFAULT);
+                builtTree = FileTreeSnapshot.walk(PATH_BUILT);
+            } finally {
+                scanStage.close();
+            }
+
+            if (output != OutputFormat.Directory) {
+                backup(metrics, backupSettings, defaultTree, builtTree);
+                BuildSettings archiveSettings = new BuildSettings(buildSettings.suffixes(), buildSettings.threads(),
+                        buildSettings.incremental(), buildSettings.materialization(), buildSettings.streamingThreshold(),
+                        targets, output, buildSettings.swap());
+                ArchiveBuilder archiveBuilder = new ArchiveBuilder(PATH_DEFAULT, PATH_ARCHIVE, PATH_INDEX, archiveSettings,
+                        backupSettings, placeholdersUtils);
+                if (targets) {
+                    logger.info("Archived {}", archiveBuilder.buildTargets(rawSettings, servers, metrics));
+                } else {
+                    logger.info("Archived {}", archiveBuilder.build(metrics));
+                }
+            } else if (targets) {
+                backup(metrics, backupSettings, defaultTree, builtTree);
+                Files.deleteIfExists(PATH_MANIFEST);
+                if (servers == null) {
+                    // 全部服务端, 在暂存文件夹中构建后切换
+                    new BuildPublisher(PATH_BUILT, PATH_GENERATIONS, buildSettings.swap()).build(staging ->
+                            new TargetBuilder(PATH_DEFAULT, staging, PATH_INDEX, buildSettings, rawSettings, placeholdersUtils)
+                                    .build(null, metrics), metrics);
+                } else {
+                    new TargetBuilder(PATH_DEFAULT, PATH_BUILT, PATH_INDEX, buildSettings, rawSettings, placeholdersUtils)
+                            .build(servers, metrics);
+                }
+            } else {
+                build(metrics, buildSettings, backupSettings, placeholdersUtils, watch, defaultTree, builtTree);
+            }
+        } finally {
+            metrics.logSummary();
+            try {
+                metrics.writeJson(PATH_METRICS.resolve("build.json"));
+                metrics.writePrometheus(PATH_METRICS.resolve("build.prom"));
+            } catch (IOException e) {
+                logger.warn("Failed to write build metrics.", e);
+            }
+        }
+
+        if (watch) {
+            String debounce = arguments.value("watch");
+            new BuildWatcher(PATH_DEFAULT, PATH_BUILT, PATH_MANIFEST, PATH_INDEX, PATH_SETTINGS, Main::loadSettings,
+                    debounce == null ? 200 : Long.parseLong(debounce)).run(buildSettings, placeholdersUtils);
+        }
+    }
+
+    private static void backup(@NotNull BuildMetrics metrics, @NotNull BackupSettings backupSettings,
+                               @NotNull FileTreeSnapshot defaultTree, @NotNull FileTreeSnapshot builtTree) throws IOException {
+        try (BuildMetrics.Stage stage = metrics.stage("backup", null)) {
+            if (backupSettings.mode() == BackupMode.Store) {
+                BackupStore backupStore = new BackupStore(PATH_BACKUP_STORE, backupSettings);
+                backupStore.snapshot(defaultTree);
+                backupStore.snapshot(builtTree);
+                backupStore.prune();
+            } else {
+                BackupCompressor backupCompressor = new BackupCompressor(backupSettings);
+                Path defaultZip = PATH_BACKUP_DEFAULT.resolve(getZipFileName());
+                Path builtZip = PATH_BACKUP_BUILT.resolve(getZipFileName());
+                backupCompressor.compress(defaultTree, defaultZip);
+                backupCompressor.compress(builtTree, builtZip);
+                stage.written(Files.size(defaultZip) + Files.size(builtZip));
+            }
+        }
     }
 
-    private static void initDirectories() {
+    private static void build(@NotNull BuildMetrics metrics, @NotNull BuildSettings buildSettings, @NotNull BackupSettings backupSettings,
+                              @NotNull PlaceholdersUtils placeholdersUtils, boolean forceIncremental,
+                              @NotNull FileTreeSnapshot defaultTree, @NotNull FileTreeSnapshot builtTree) throws IOException {
+        backup(metrics, backupSettings, defaultTree, builtTree);
+
+        if (buildSettings.incremental() || forceIncremental) {
+            try (BuildMetrics.Stage stage = metrics.stage("incremental", PATH_BUILT)) {
+                new IncrementalBuilder(PATH_DEFAULT, PATH_BUILT, PATH_MANIFEST, PATH_INDEX, buildSettings, placeholdersUtils).build(stage, defaultTree);
+            }
+            return;
+        }
+
+        // 在暂存文件夹中构建, 完成后切换为 built, 构建期间 built 保持上一次的内容
+        new BuildPublisher(PATH_BUILT, PATH_GENERATIONS, buildSettings.swap()).build(staging -> {
+            // 复制到暂存文件夹, 同时检测需要替换的文件
+            Map<Path, ContentType> types;
+            try (BuildMetrics.Stage stage = metrics.stage("copy", staging)) {
+                types = copyDirectory(defaultTree, staging, buildSettings.suffixes(), buildSettings.materialization(), stage);
+            }
+
+            // placeholder
+            try (BuildMetrics.Stage stage = metrics.stage("placeholder", staging)) {
+                PlaceholderRenderer renderer = new PlaceholderRenderer(placeholdersUtils);
+                PlaceholderIndex index = new PlaceholderIndex();
+                ParallelExecutor.forEach(new ArrayList<>(types.keySet()), buildSettings.threads(), path -> {
+                    logger.debug("placeholder {}", path);
+                    long start = System.nanoTime();
+                    long size = Files.size(path);
+                    List<PlaceholderToken> tokens = new ArrayList<>();
+                    int substitutions = renderer.renderFile(path, path, types.get(path), tokens, buildSettings.streamingThreshold());
+                    index.put(BuildManifest.relativize(staging, path), tokens);
+                    stage.file(path, System.nanoTime() - start, size, substitutions > 0 ? Files.size(path) : 0, substitutions);
+                });
+
+                List<String> unused = index.save(PATH_INDEX, placeholdersUtils.keys());
+                if (!unused.isEmpty()) {
+                    logger.warn("{} placeholders are not used by any file: {}", unused.size(), unused);
+                }
+            }
+
+            // 增量构建的清单对应旧的 built
+            Files.deleteIfExists(PATH_MANIFEST);
+        }, metrics);
+    }
+
+    private static void initDirectories() throws IOException {
+        // 上次切换 built 时中断
+        BuildPublisher.recover(PATH_BUILT, PATH_GENERATIONS);
+
         createDirectory(PATH_DEFAULT_FILES);
         createDirectory(PATH_DEFAULT_SERVERS);
 
@@ -103,59 +317,84 @@ public class Main {
         createDirectory(PATH_BACKUP_BUILT);
     }
 
-    private static @NotNull JsonObject loadSettings() throws IOException {
-        copyDirectory( getDataFolder().resolve("mcp.build.setting.json"), getDataFolder().resolve(".mcp.build.setting.json"));
-
-        Path tmpSettingsPath = getDataFolder().resolve(".mcp.build.setting.json");
-        BufferedReader reader = Files.newBufferedReader(tmpSettingsPath);
-        JsonObject asJsonObject = JsonParser.parseReader(reader).getAsJsonObject();
-        PlaceholdersUtils placeholdersUtils = new PlaceholdersUtils(asJsonObject); // 获取源papi
-        String body = readFileToString(tmpSettingsPath); // 文件内容
-        String newBody = body;                // 新文件内容
-
-        Set<Placeholder> p = new HashSet<>();
-        p.addAll(extractPlaceholderValues(body, PlaceholderType.Text));
-        p.addAll(extractPlaceholderValues(body, PlaceholderType.Number));
-        while (!p.isEmpty()) {
-            {
-                Set<Placeholder> strings = extractPlaceholderValues(body, PlaceholderType.Text); // body内的papi
-                for (Placeholder placeholder : strings) {
-                    String papied = placeholdersUtils.get(placeholder.text()); // 获取值
-                    newBody = newBody.replaceAll("\\$\\(mcp\\."+placeholder.text()+"\\)", Matcher.quoteReplacement(papied));
-                    writeFileOverwrite(tmpSettingsPath, newBody);
-                }
-            }
+    private static void restore(@NotNull BackupStore backupStore, @NotNull List<String> values) throws IOException {
+        if (values.isEmpty()) {
+            logger.info("Snapshots: {}", backupStore.listSnapshots());
+            return;
+        }
 
-            {
-                Set<Placeholder> strings = extractPlaceholderValues(body, PlaceholderType.Number); // body内的papi
-                for (Placeholder placeholder : strings) {
-                    String papied = placeholdersUtils.get(placeholder.text()); // 获取值
-                    newBody = newBody.replaceAll("\"\\$\\(mcp\\."+placeholder.text()+"\\)\\(number\\)\"", Matcher.quoteReplacement(papied));
-                    writeFileOverwrite(tmpSettingsPath, newBody);
-                }
-            }
+        String name = values.get(0);
+        Path target = values.size() > 1 ? Paths.get(values.get(1)) : PATH_RESTORED.resolve(name.replace(':', '-'));
+        backupStore.restore(name, target);
+    }
 
-            p.clear();
+    private static void where(@NotNull PlaceholdersUtils placeholdersUtils, @NotNull List<String> keys) throws IOException {
+        PlaceholderIndex index = loadIndex();
+        if (index == null) {
+            logger.warn("No placeholder index found, build once first.");
+            return;
+        }
 
-            p.addAll(extractPlaceholderValues(readFileToString(tmpSettingsPath), PlaceholderType.Text));
-            p.addAll(extractPlaceholderValues(readFileToString(tmpSettingsPath), PlaceholderType.Number));
+        if (keys.isEmpty()) {
+            logger.info("Unused placeholders: {}", index.unused(placeholdersUtils.keys()));
+            return;
         }
 
+        for (String key : keys) {
+            Map<String, List<Long>> files = index.where(key);
+            if (files.isEmpty()) {
+                logger.info("{} is not used by any file.", key);
+            }
+            files.forEach((file, offsets) -> logger.info("{} -> {} at {}", key, file, offsets));
+        }
+    }
 
+    // 只读使用, 构建会修改索引, 不能复用这里的对象
+    private static @Nullable PlaceholderIndex loadIndex() throws IOException {
+        if (Files.notExists(PATH_INDEX)) {
+            return null;
+        }
+        Loaded<PlaceholderIndex> loaded = loadedIndex;
+        if (loaded == null || !loaded.isCurrent(PATH_INDEX)) {
+            FileTime modified = Files.getLastModifiedTime(PATH_INDEX);
+            long size = Files.size(PATH_INDEX);
+            PlaceholderIndex index = PlaceholderIndex.load(PATH_INDEX);
+            if (index == null) {
+                return null;
+            }
+            loaded = new Loaded<>(modified, size, index);
+            loadedIndex = loaded;
+        }
+        return loaded.value();
+    }
 
+    private static @NotNull JsonObject loadSettings() throws IOException {
+        return SettingsResolver.resolve(readSettings());
+    }
 
-        BufferedReader reader2 = Files.newBufferedReader(tmpSettingsPath);
-        return JsonParser.parseReader(reader2).getAsJsonObject();
+    // 未解析引用的设置
+    private static @NotNull JsonObject readSettings() throws IOException {
+        // 旧版本解析设置时使用的临时文件
+        Files.deleteIfExists(getDataFolder().resolve(".mcp.build.setting.json"));
+
+        Loaded<JsonObject> loaded = loadedSettings;
+        if (loaded == null || !loaded.isCurrent(PATH_SETTINGS)) {
+            FileTime modified = Files.getLastModifiedTime(PATH_SETTINGS);
+            long size = Files.size(PATH_SETTINGS);
+            try (BufferedReader reader = Files.newBufferedReader(PATH_SETTINGS)) {
+                loaded = new Loaded<>(modified, size, JsonParser.parseReader(reader).getAsJsonObject());
+            }
+            loadedSettings = loaded;
+        }
+        return loaded.value().deepCopy();
     }
 
     private static @NotNull Path getDataFolder() {
         try {
-            URL url = Main.class.getProtectionDomain().getCodeSource().getLocation();
-            Path jarPath = Paths.get(url.toURI()).getParent();
-            return jarPath != null ? jarPath : Paths.get("");
-        } catch (Exception e) {
+            return DaemonClient.dataFolder();
+        } catch (IllegalStateException e) {
             logger.error("Error retrieving data folder.", e);
-            throw new RuntimeException(e);
+            throw e;
         }
     }
 
@@ -0,0 +1,20 @@
+package fun.xiantiao.mcpacker.enums;
+
+/**
+ * 备份方式
+ */
+public enum BackupMode {
+    /** 每次构建完整压缩一个 zip */
+    Zip,
+    /** 内容寻址存储, 相同内容只保存一次, 每次构建只记录一个快照索引 */
+    Store;
+
+    public static BackupMode of(String name) {
+        for (BackupMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown backup mode: " + name);
+    }
+}
@@ -0,0 +1,13 @@
+package fun.xiantiao.mcpacker.enums;
+
+/**
+ * 按内容判断的文件类型, 见 ContentSniffer
+ */
+public enum ContentType {
+    /** 二进制文件, 不替换 papi */
+    Binary,
+    /** 文本文件, 但不包含 $(mcp. */
+    Plain,
+    /** 包含 $(mcp. 的文本文件, 需要替换 */
+    Templated
+}
@@ -0,0 +1,22 @@
+package fun.xiantiao.mcpacker.enums;
+
+/**
+ * 不需要替换 papi 的文件如何放入 built
+ */
+public enum MaterializationStrategy {
+    /** 普通复制 */
+    Copy,
+    /** 硬链接, 与 default 共用同一份数据, 不支持时退回复制 */
+    HardLink,
+    /** 使用 FileChannel.transferTo 在内核中复制, 文件系统支持时不经过用户态 */
+    Transfer;
+
+    public static MaterializationStrategy of(String name) {
+        for (MaterializationStrategy strategy : values()) {
+            if (strategy.name().equalsIgnoreCase(name)) {
+                return strategy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown materialization strategy: " + name);
+    }
+}
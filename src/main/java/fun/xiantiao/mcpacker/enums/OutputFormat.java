@@ -0,0 +1,35 @@
+package fun.xiantiao.mcpacker.enums;
+
+/**
+ * 构建结果的输出方式
+ */
+public enum OutputFormat {
+    /** 写入 built 文件夹 */
+    Directory("dir"),
+    /** 直接写入 zip, 不经过 built */
+    Zip("zip"),
+    /** 直接写入 tar.gz, 不经过 built */
+    TarGz("tar.gz");
+
+    private final String extension;
+
+    OutputFormat(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @return 压缩包的扩展名 (不含开头的点)
+     */
+    public String extension() {
+        return extension;
+    }
+
+    public static OutputFormat of(String name) {
+        for (OutputFormat format : values()) {
+            if (format.name().equalsIgnoreCase(name) || format.extension.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown output format: " + name);
+    }
+}
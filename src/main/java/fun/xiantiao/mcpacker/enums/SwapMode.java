@@ -0,0 +1,20 @@
+package fun.xiantiao.mcpacker.enums;
+
+/**
+ * 完整构建在暂存文件夹中完成后如何切换为 built
+ */
+public enum SwapMode {
+    /** 旧的 built 和暂存文件夹各原子重命名一次, built 保持为普通文件夹. 两次重命名之间 built 短暂不存在 */
+    Rename,
+    /** built 为指向当前一代的符号链接, 一次原子重命名替换链接 */
+    Symlink;
+
+    public static SwapMode of(String name) {
+        for (SwapMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown swap mode: " + name);
+    }
+}
@@ -0,0 +1,31 @@
+package fun.xiantiao.mcpacker.providers;
+
+import fun.xiantiao.mcpacker.records.ProviderContext;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * $(env.名称), 环境变量
+ */
+public class EnvProvider implements ValueProvider {
+
+    @Override
+    public @NotNull String name() {
+        return "env";
+    }
+
+    @Override
+    public @NotNull List<String> resolve(@NotNull List<String> arguments, @NotNull ProviderContext context) {
+        List<String> values = new ArrayList<>(arguments.size());
+        for (String argument : arguments) {
+            String value = System.getenv(argument);
+            if (value == null) {
+                throw new IllegalArgumentException("Environment variable is not set: " + argument);
+            }
+            values.add(value);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,38 @@
+package fun.xiantiao.mcpacker.providers;
+
+import fun.xiantiao.mcpacker.records.ProviderContext;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * $(file.路径), 文件内容 (去掉末尾的换行)
+ * <p>
+ * 相对路径基于 placeholder.providers.file.folder, 默认为工作目录
+ */
+public class FileProvider implements ValueProvider {
+
+    @Override
+    public @NotNull String name() {
+        return "file";
+    }
+
+    @Override
+    public @NotNull List<String> resolve(@NotNull List<String> arguments, @NotNull ProviderContext context) throws IOException {
+        String folder = context.options(name()).has("folder") ? context.options(name()).get("folder").getAsString() : "";
+        List<String> values = new ArrayList<>(arguments.size());
+        for (String argument : arguments) {
+            String content = Files.readString(Path.of(folder).resolve(argument));
+            int end = content.length();
+            while (end > 0 && (content.charAt(end - 1) == '\n' || content.charAt(end - 1) == '\r')) {
+                end--;
+            }
+            values.add(content.substring(0, end));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,118 @@
+package fun.xiantiao.mcpacker.providers;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import fun.xiantiao.mcpacker.records.ProviderContext;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * $(http.key), 从密钥服务获取, 默认缓存 5 分钟
+ * <p>
+ * 所有 key 通过一次 POST 获取: 请求体为 {"keys": [...]}, 返回 {"key": "值", ...}.
+ * placeholder.providers.http 中的选项:
+ * <ul>
+ *     <li>url: 服务地址, 为 file: 时直接读取该 JSON 文件, 用于本地测试</li>
+ *     <li>tokenEnv: 保存 token 的环境变量, 作为 Bearer 发送</li>
+ *     <li>timeout: 超时 (毫秒), 默认 10000</li>
+ * </ul>
+ */
+public class HttpProvider implements ValueProvider {
+
+    private static volatile HttpClient client;
+
+    @Override
+    public @NotNull String name() {
+        return "http";
+    }
+
+    @Override
+    public long ttl() {
+        return 5 * 60 * 1000;
+    }
+
+    @Override
+    public @NotNull List<String> resolve(@NotNull List<String> arguments, @NotNull ProviderContext context) throws IOException {
+        JsonObject options = context.options(name());
+        if (!options.has("url")) {
+            throw new IllegalArgumentException("placeholder.providers.http.url is not set");
+        }
+        URI uri = URI.create(options.get("url").getAsString());
+
+        String body = "file".equals(uri.getScheme()) ? Files.readString(Path.of(uri)) : post(uri, arguments, options);
+        JsonObject secrets;
+        try {
+            secrets = JsonParser.parseString(body).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("Invalid response from " + uri + ", expected a JSON object", e);
+        }
+
+        List<String> values = new ArrayList<>(arguments.size());
+        for (String argument : arguments) {
+            JsonElement value = secrets.get(argument);
+            if (value == null || value.isJsonNull()) {
+                throw new IllegalArgumentException("Secret not found: " + argument + " (" + uri + ")");
+            }
+            values.add(value.isJsonPrimitive() ? value.getAsString() : value.toString());
+        }
+        return values;
+    }
+
+    private static @NotNull String post(@NotNull URI uri, @NotNull List<String> arguments, @NotNull JsonObject options) throws IOException {
+        Duration timeout = Duration.ofMillis(options.has("timeout") ? options.get("timeout").getAsLong() : 10000);
+        JsonArray keys = new JsonArray();
+        new LinkedHashSet<>(arguments).forEach(keys::add);
+        JsonObject request = new JsonObject();
+        request.add("keys", keys);
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(request.toString()));
+        if (options.has("tokenEnv")) {
+            String token = System.getenv(options.get("tokenEnv").getAsString());
+            if (token == null) {
+                throw new IllegalArgumentException("Environment variable is not set: " + options.get("tokenEnv").getAsString());
+            }
+            builder.header("Authorization", "Bearer " + token);
+        }
+
+        HttpResponse<String> response;
+        try {
+            response = client(timeout).send(builder.build(), HttpResponse.BodyHandlers.ofString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while requesting " + uri);
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException("HTTP " + response.statusCode() + " from " + uri);
+        }
+        return response.body();
+    }
+
+    private static @NotNull HttpClient client(@NotNull Duration timeout) {
+        if (client == null) {
+            synchronized (HttpProvider.class) {
+                if (client == null) {
+                    client = HttpClient.newBuilder().connectTimeout(timeout).build();
+                }
+            }
+        }
+        return client;
+    }
+}
@@ -0,0 +1,44 @@
+package fun.xiantiao.mcpacker.providers;
+
+import fun.xiantiao.mcpacker.records.ProviderContext;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * $(port.起始端口), 每个服务端依次加 placeholder.providers.port.step (默认 1)
+ * <p>
+ * 序号按 default/servers 中全部服务端的名称排序, 只构建部分服务端时端口也不会变化; 共享层为起始端口
+ */
+public class PortProvider implements ValueProvider {
+
+    @Override
+    public @NotNull String name() {
+        return "port";
+    }
+
+    @Override
+    public boolean perServer() {
+        return true;
+    }
+
+    @Override
+    public @NotNull List<String> resolve(@NotNull List<String> arguments, @NotNull ProviderContext context) {
+        int step = context.options(name()).has("step") ? context.options(name()).get("step").getAsInt() : 1;
+        List<String> values = new ArrayList<>(arguments.size());
+        for (String argument : arguments) {
+            int port;
+            try {
+                port = Integer.parseInt(argument) + context.serverIndex() * step;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port: $(port." + argument + ")");
+            }
+            if (port < 1 || port > 65535) {
+                throw new IllegalArgumentException("Port out of range for server " + context.server() + ": " + port);
+            }
+            values.add(Integer.toString(port));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,43 @@
+package fun.xiantiao.mcpacker.providers;
+
+import fun.xiantiao.mcpacker.records.ProviderContext;
+import fun.xiantiao.mcpacker.utils.ValueProviders;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * $(random.uuid)
+ */
+public class RandomProvider implements ValueProvider {
+
+    @Override
+    public @NotNull String name() {
+        return "random";
+    }
+
+    @Override
+    public @NotNull List<String> resolve(@NotNull List<String> arguments, @NotNull ProviderContext context) {
+        List<String> values = new ArrayList<>(arguments.size());
+        for (String argument : arguments) {
+            if (!"uuid".equals(argument)) {
+                throw new IllegalArgumentException("Unknown variable: $(random." + argument + ")");
+            }
+            values.add(randomUuid().toString());
+        }
+        return values;
+    }
+
+    // 与 UUID.randomUUID 相同 (版本 4), 使用共享的随机源
+    private static @NotNull UUID randomUuid() {
+        byte[] bytes = new byte[16];
+        ValueProviders.random().nextBytes(bytes);
+        bytes[6] = (byte) ((bytes[6] & 0x0f) | 0x40);
+        bytes[8] = (byte) ((bytes[8] & 0x3f) | 0x80);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+}
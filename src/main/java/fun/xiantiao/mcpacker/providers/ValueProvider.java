@@ -0,0 +1,48 @@
+package fun.xiantiao.mcpacker.providers;
+
+import fun.xiantiao.mcpacker.records.ProviderContext;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 设置中的变量 $(名称.参数) 的值来源, 如 $(env.DB_PASSWORD)
+ * <p>
+ * 通过 ServiceLoader 加载, 在 META-INF/services/fun.xiantiao.mcpacker.providers.ValueProvider 中注册.
+ * 同一次解析中用到的变量按提供者分组, 每个提供者只调用一次 {@link #resolve(List, ProviderContext)}
+ */
+public interface ValueProvider {
+
+    /**
+     * @return 变量名称中 . 之前的部分, 不能为 mcp
+     */
+    @NotNull String name();
+
+    /**
+     * 值的缓存时间, 可以被 placeholder.providers.&lt;名称&gt;.ttl 覆盖
+     *
+     * @return 毫秒, 小于等于 0 时不缓存, 每个 key 都重新获取 (如随机值)
+     */
+    default long ttl() {
+        return 0;
+    }
+
+    /**
+     * @return 值是否按服务端不同, 为 true 时每个服务端单独获取, 不使用共享层的值
+     */
+    default boolean perServer() {
+        return false;
+    }
+
+    /**
+     * 批量获取值
+     *
+     * @param arguments 变量中 . 之后的部分, 不缓存时可能重复
+     * @param context   上下文
+     * @return 与 arguments 顺序相同的值
+     * @throws IOException              获取失败
+     * @throws IllegalArgumentException 参数无效
+     */
+    @NotNull List<String> resolve(@NotNull List<String> arguments, @NotNull ProviderContext context) throws IOException;
+}
@@ -0,0 +1,31 @@
+package fun.xiantiao.mcpacker.providers;
+
+import fun.xiantiao.mcpacker.records.ProviderContext;
+import fun.xiantiao.mcpacker.utils.PlaceholdersUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * $(velocity.secret), velocity 的 forwarding secret
+ */
+public class VelocityProvider implements ValueProvider {
+
+    @Override
+    public @NotNull String name() {
+        return "velocity";
+    }
+
+    @Override
+    public @NotNull List<String> resolve(@NotNull List<String> arguments, @NotNull ProviderContext context) {
+        List<String> values = new ArrayList<>(arguments.size());
+        for (String argument : arguments) {
+            if (!"secret".equals(argument)) {
+                throw new IllegalArgumentException("Unknown variable: $(velocity." + argument + ")");
+            }
+            values.add(PlaceholdersUtils.generateRandomString(16));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,82 @@
+package fun.xiantiao.mcpacker.records;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import fun.xiantiao.mcpacker.enums.BackupMode;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * mcp.build.setting.json 中的备份选项
+ *
+ * @param mode      备份方式
+ * @param threads   压缩线程数, 小于等于 0 为 CPU 核心数
+ * @param level     默认压缩等级 0-9, -1 为 deflate 默认等级
+ * @param levels    按文件后缀指定压缩等级, 0 为不压缩直接存储
+ * @param retention store 模式下每个文件夹保留的快照数量, 小于等于 0 为全部保留
+ */
+public record BackupSettings(BackupMode mode, int threads, int level, Map<String, Integer> levels, int retention) {
+
+    // 本身已经压缩过的文件, 再压缩只会浪费时间
+    private static final Map<String, Integer> DEFAULT_LEVELS = defaultLevels();
+
+    public static @NotNull BackupSettings of(@NotNull JsonObject settings) {
+        JsonObject backup = settings.has("backup") ? settings.getAsJsonObject("backup") : new JsonObject();
+
+        BackupMode mode = backup.has("mode") ? BackupMode.of(backup.get("mode").getAsString()) : BackupMode.Zip;
+
+        int threads = backup.has("threads") ? backup.get("threads").getAsInt() : 0;
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        int level = backup.has("level") ? checkLevel(backup.get("level").getAsInt()) : Deflater.DEFAULT_COMPRESSION;
+
+        Map<String, Integer> levels = DEFAULT_LEVELS;
+        if (backup.has("levels")) {
+            levels = new LinkedHashMap<>();
+            for (Map.Entry<String, JsonElement> entry : backup.getAsJsonObject("levels").entrySet()) {
+                levels.put(entry.getKey(), checkLevel(entry.getValue().getAsInt()));
+            }
+            levels = Collections.unmodifiableMap(levels);
+        }
+
+        int retention = backup.has("retention") ? backup.get("retention").getAsInt() : 0;
+
+        return new BackupSettings(mode, threads, level, levels, retention);
+    }
+
+    /**
+     * 获取文件的压缩等级
+     *
+     * @param fileName 文件名
+     * @return 压缩等级
+     */
+    public int levelOf(@NotNull String fileName) {
+        for (Map.Entry<String, Integer> entry : levels.entrySet()) {
+            if (fileName.endsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return level;
+    }
+
+    private static int checkLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        return level;
+    }
+
+    private static @NotNull Map<String, Integer> defaultLevels() {
+        Map<String, Integer> levels = new LinkedHashMap<>();
+        for (String suffix : new String[]{".jar", ".zip", ".gz", ".mca", ".mcr", ".png", ".jpg", ".ogg"}) {
+            levels.put(suffix, Deflater.NO_COMPRESSION);
+        }
+        return Collections.unmodifiableMap(levels);
+    }
+}
@@ -0,0 +1,62 @@
+package fun.xiantiao.mcpacker.records;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import fun.xiantiao.mcpacker.enums.MaterializationStrategy;
+import fun.xiantiao.mcpacker.enums.OutputFormat;
+import fun.xiantiao.mcpacker.enums.SwapMode;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static fun.xiantiao.mcpacker.utils.Tool.getValueByPath;
+
+/**
+ * mcp.build.setting.json 中的构建选项
+ *
+ * @param suffixes           需要替换 papi 的文件后缀
+ * @param threads            替换 papi 的线程数, 1 为单线程, 小于等于 0 为 CPU 核心数
+ * @param incremental        是否增量构建
+ * @param materialization    不需要替换 papi 的文件放入 built 的方式
+ * @param streamingThreshold 不小于该大小 (字节) 的文件分块流式替换
+ * @param targets            是否把每个服务端构建为完整的目标 (files 作为共享层)
+ * @param output             输出到 built 文件夹还是直接写入压缩包
+ * @param swap               完整构建的暂存文件夹如何切换为 built
+ */
+public record BuildSettings(List<String> suffixes, int threads, boolean incremental,
+                            MaterializationStrategy materialization, long streamingThreshold, boolean targets,
+                            OutputFormat output, SwapMode swap) {
+
+    public static @NotNull BuildSettings of(@NotNull JsonObject settings) {
+        List<String> suffixes = new ArrayList<>();
+        for (JsonElement element : Objects.requireNonNull(getValueByPath(settings, "placeholder.suffixes")).getAsJsonArray()) {
+            suffixes.add(element.getAsString());
+        }
+
+        JsonObject build = settings.has("build") ? settings.getAsJsonObject("build") : new JsonObject();
+
+        int threads = build.has("threads") ? build.get("threads").getAsInt() : 1;
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        boolean incremental = build.has("incremental") && build.get("incremental").getAsBoolean();
+
+        MaterializationStrategy materialization = build.has("materialization")
+                ? MaterializationStrategy.of(build.get("materialization").getAsString())
+                : MaterializationStrategy.Copy;
+
+        long streamingThreshold = build.has("streamingThreshold") ? build.get("streamingThreshold").getAsLong() : 64L * 1024 * 1024;
+
+        boolean targets = build.has("targets") && build.get("targets").getAsBoolean();
+
+        OutputFormat output = build.has("output") ? OutputFormat.of(build.get("output").getAsString()) : OutputFormat.Directory;
+
+        SwapMode swap = build.has("swap") ? SwapMode.of(build.get("swap").getAsString()) : SwapMode.Rename;
+
+        return new BuildSettings(List.copyOf(suffixes), threads, incremental, materialization, streamingThreshold, targets,
+                output, swap);
+    }
+}
@@ -0,0 +1,14 @@
+package fun.xiantiao.mcpacker.records;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+
+/**
+ * 增量构建清单中的一个文件
+ *
+ * @param hash         源文件 SHA-256
+ * @param placeholders 替换时用到的 key 与其原始值, 不需要替换的文件为 null
+ */
+public record ManifestEntry(String hash, @Nullable Map<String, String> placeholders) {
+}
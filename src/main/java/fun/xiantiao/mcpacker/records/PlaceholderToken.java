@@ -0,0 +1,12 @@
+package fun.xiantiao.mcpacker.records;
+
+/**
+ * 文件内一次 papi 出现的位置
+ *
+ * @param placeholder papi
+ * @param start       替换区间起点 (Number 且带引号时包含左引号), 按字符计, 流式读取的大文件可以超过 int
+ * @param end         替换区间终点 (不包含)
+ * @param quoted      Number 是否被 "" 包裹, 只有被包裹的才会被替换
+ */
+public record PlaceholderToken(Placeholder placeholder, long start, long end, boolean quoted) {
+}
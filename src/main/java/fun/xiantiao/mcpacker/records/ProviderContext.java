@@ -0,0 +1,40 @@
+package fun.xiantiao.mcpacker.records;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 变量获取时的上下文
+ *
+ * @param server      正在构建的服务端, 为 null 时为共享层
+ * @param serverIndex 服务端在 default/servers 中按名称排序的序号, 共享层为 0
+ * @param providers   设置中的 placeholder.providers
+ */
+public record ProviderContext(@Nullable String server, int serverIndex, @NotNull JsonObject providers) {
+
+    public static @NotNull ProviderContext of(@NotNull JsonObject settings) {
+        JsonObject providers = new JsonObject();
+        if (settings.has("placeholder") && settings.get("placeholder").isJsonObject()) {
+            JsonElement element = settings.getAsJsonObject("placeholder").get("providers");
+            if (element != null && element.isJsonObject()) {
+                providers = element.getAsJsonObject();
+            }
+        }
+        return new ProviderContext(null, 0, providers);
+    }
+
+    public @NotNull ProviderContext forServer(@NotNull String server, int serverIndex) {
+        return new ProviderContext(server, serverIndex, providers);
+    }
+
+    /**
+     * @param provider 提供者名称
+     * @return placeholder.providers.&lt;名称&gt;, 没有时为空对象
+     */
+    public @NotNull JsonObject options(@NotNull String provider) {
+        JsonElement element = providers.get(provider);
+        return element != null && element.isJsonObject() ? element.getAsJsonObject() : new JsonObject();
+    }
+}
@@ -0,0 +1,13 @@
+package fun.xiantiao.mcpacker.records;
+
+import java.util.Map;
+
+/**
+ * 备份快照索引
+ *
+ * @param source  备份的文件夹名称 (default / built)
+ * @param created 创建时间 (毫秒)
+ * @param files   相对路径 (/ 分隔) 到文件的映射
+ */
+public record Snapshot(String source, long created, Map<String, SnapshotFile> files) {
+}
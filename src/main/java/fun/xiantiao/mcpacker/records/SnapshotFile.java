@@ -0,0 +1,11 @@
+package fun.xiantiao.mcpacker.records;
+
+/**
+ * 快照中的一个文件
+ *
+ * @param hash         内容 SHA-256, 对应 objects 中的数据
+ * @param size         文件大小
+ * @param lastModified 修改时间 (毫秒)
+ */
+public record SnapshotFile(String hash, long size, long lastModified) {
+}
@@ -0,0 +1,312 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.JsonObject;
+import fun.xiantiao.mcpacker.enums.ContentType;
+import fun.xiantiao.mcpacker.enums.OutputFormat;
+import fun.xiantiao.mcpacker.records.BackupSettings;
+import fun.xiantiao.mcpacker.records.BuildSettings;
+import fun.xiantiao.mcpacker.records.PlaceholderToken;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+import static fun.xiantiao.mcpacker.utils.Tool.matchesSuffix;
+
+/**
+ * 直接把构建结果写入压缩包, 不经过 built
+ * <p>
+ * 需要替换的文件在压缩线程中边替换边写入条目, 其他文件从 default 原样读取;
+ * 压缩包先写到临时文件, 完成后替换, 部署方不会读到写了一半的压缩包.
+ * 文件夹也写入条目 (保留空文件夹), 条目带有源文件的 unix 权限.
+ * zip 的压缩等级与备份相同, zip 和 tar 都使用备份的线程数
+ */
+public class ArchiveBuilder {
+
+    private static final Logger logger = getLogger();
+
+    private static final long MEMORY_LIMIT = 8 * 1024 * 1024; // tar 条目需要先知道大小, 更大的条目替换到临时文件
+
+    private final Path source;
+    private final Path output;
+    private final Path indexPath;
+    private final BuildSettings buildSettings;
+    private final BackupSettings backupSettings;
+    private final PlaceholdersUtils placeholdersUtils;
+
+    /**
+     * @param source 即 default
+     * @param output 压缩包所在的文件夹
+     */
+    public ArchiveBuilder(@NotNull Path source, @NotNull Path output, @NotNull Path indexPath, @NotNull BuildSettings buildSettings,
+                          @NotNull BackupSettings backupSettings, @NotNull PlaceholdersUtils placeholdersUtils) {
+        this.source = source;
+        this.output = output;
+        this.indexPath = indexPath;
+        this.buildSettings = buildSettings;
+        this.backupSettings = backupSettings;
+        this.placeholdersUtils = placeholdersUtils;
+    }
+
+    /**
+     * 把整个 default 构建为一个压缩包, 结构与 built 相同
+     *
+     * @param metrics 记录到的构建统计, 可以为 null
+     * @return 压缩包
+     * @throws IOException 失败
+     */
+    public @NotNull Path build(@Nullable BuildMetrics metrics) throws IOException {
+        PlaceholderIndex index = new PlaceholderIndex();
+        Path archive = output.resolve("built." + buildSettings.output().extension());
+
+        try (BuildMetrics.Stage stage = metrics == null ? null : metrics.stage("archive", source)) {
+            PlaceholderRenderer renderer = new PlaceholderRenderer(placeholdersUtils);
+            FileTreeSnapshot tree = FileTreeSnapshot.walk(source);
+            List<BackupCompressor.Source> sources = new ArrayList<>();
+            for (Path dir : tree.directories()) {
+                if (!dir.equals(source)) {
+                    sources.add(BackupCompressor.Source.directory(BuildManifest.relativize(source, dir), dir));
+                }
+            }
+            for (Path file : tree.files()) {
+                String relativePath = BuildManifest.relativize(source, file);
+                sources.add(source(relativePath, file, renderer, relativePath, index, stage));
+            }
+            write(sources, archive, stage);
+        }
+
+        List<String> unused = index.save(indexPath, placeholdersUtils.keys());
+        if (!unused.isEmpty()) {
+            logger.warn("{} placeholders are not used by any file: {}", unused.size(), unused);
+        }
+        return archive;
+    }
+
+    /**
+     * 每个服务端构建为一个压缩包, 内容与 built/servers/&lt;名称&gt; 相同
+     *
+     * @param rawSettings 未解析引用的设置, 见 {@link TargetBuilder}
+     * @param selected    只构建这些服务端, 为 null 时构建全部
+     * @param metrics     记录到的构建统计, 可以为 null
+     * @return 压缩包
+     * @throws IOException 失败
+     */
+    public @NotNull List<Path> buildTargets(@NotNull JsonObject rawSettings, @Nullable Collection<String> selected,
+                                            @Nullable BuildMetrics metrics) throws IOException {
+        Path sharedSource = source.resolve("files");
+        Path serversSource = source.resolve("servers");
+        TargetBuilder targetBuilder = new TargetBuilder(source, output, indexPath, buildSettings, rawSettings, placeholdersUtils);
+        List<String> servers = TargetBuilder.servers(serversSource, selected);
+
+        PlaceholderIndex index = selected == null ? null : PlaceholderIndex.load(indexPath);
+        if (index == null) {
+            index = new PlaceholderIndex();
+        }
+        index.removeDirectory("files");
+        for (String server : servers) {
+            index.removeDirectory("servers/" + server);
+        }
+
+        List<Path> archives = new ArrayList<>();
+        try (BuildMetrics.Stage stage = metrics == null ? null : metrics.stage("archive", source)) {
+            FileTreeSnapshot sharedTree = FileTreeSnapshot.walk(sharedSource);
+            for (String server : servers) {
+                PlaceholderRenderer renderer = new PlaceholderRenderer(targetBuilder.scope(server));
+                Path serverSource = serversSource.resolve(server);
+                FileTreeSnapshot serverTree = FileTreeSnapshot.walk(serverSource);
+
+                // 服务端自己的文件覆盖共享层的同名文件, 按名称排序时文件夹在其内容之前
+                Map<String, BackupCompressor.Source> sources = new TreeMap<>();
+                for (FileTreeSnapshot tree : List.of(serverTree, sharedTree)) {
+                    for (Path dir : tree.directories()) {
+                        String name = BuildManifest.relativize(tree.root(), dir);
+                        if (!name.isEmpty()) {
+                            sources.putIfAbsent(name, BackupCompressor.Source.directory(name, dir));
+                        }
+                    }
+                }
+                for (Path file : serverTree.files()) {
+                    String name = BuildManifest.relativize(serverSource, file);
+                    sources.put(name, source(name, file, renderer, BuildManifest.relativize(source, file), index, stage));
+                }
+                for (Path file : sharedTree.files()) {
+                    String name = BuildManifest.relativize(sharedSource, file);
+                    if (!sources.containsKey(name)) {
+                        sources.put(name, source(name, file, renderer, "files/" + name, index, stage));
+                    }
+                }
+
+                Path archive = output.resolve(server + "." + buildSettings.output().extension());
+                write(new ArrayList<>(sources.values()), archive, stage);
+                archives.add(archive);
+            }
+        }
+
+        List<String> unused = index.save(indexPath, placeholdersUtils.keys());
+        if (selected == null && !unused.isEmpty()) {
+            logger.warn("{} placeholders are not used by any file: {}", unused.size(), unused);
+        }
+        return archives;
+    }
+
+    /**
+     * 一个条目, 需要替换的文件在写入时替换并记录到索引
+     *
+     * @param name         条目名称
+     * @param relativePath 在索引中的路径 (相对 default)
+     */
+    private @NotNull BackupCompressor.Source source(@NotNull String name, @NotNull Path file, @NotNull PlaceholderRenderer renderer,
+                                                    @NotNull String relativePath, @NotNull PlaceholderIndex index,
+                                                    @Nullable BuildMetrics.Stage stage) throws IOException {
+        if (!matchesSuffix(file.getFileName().toString(), buildSettings.suffixes())) {
+            if (stage != null) {
+                stage.file(file, 0, Files.size(file), 0, 0);
+            }
+            return new BackupCompressor.Source(name, file, null);
+        }
+
+        return new BackupCompressor.Source(name, file, (path, out) -> {
+            long start = System.nanoTime();
+            List<PlaceholderToken> tokens = new ArrayList<>();
+            // 只检测一次, 没有 papi 的文件不经过解码原样写入
+            ContentType type = ContentSniffer.sniff(path);
+            if (type == ContentType.Templated) {
+                logger.debug("placeholder {}", path);
+            }
+            int substitutions = renderer.renderTo(path, out, type, tokens, buildSettings.streamingThreshold());
+            index.put(relativePath, tokens);
+            if (stage != null) {
+                stage.file(path, System.nanoTime() - start, Files.size(path), 0, substitutions);
+            }
+        });
+    }
+
+    // 写入临时文件后替换
+    private void write(@NotNull List<BackupCompressor.Source> sources, @NotNull Path archive,
+                       @Nullable BuildMetrics.Stage stage) throws IOException {
+        logger.info("archiving {}", archive);
+        Files.createDirectories(archive.getParent());
+        Path tmp = archive.resolveSibling(archive.getFileName() + ".tmp");
+        try {
+            if (buildSettings.output() == OutputFormat.Zip) {
+                new BackupCompressor(backupSettings).compress(sources, tmp);
+            } else {
+                writeTar(sources, tmp);
+            }
+            Files.move(tmp, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        if (stage != null) {
+            stage.written(Files.size(archive));
+        }
+    }
+
+    /**
+     * 替换好的 tar 条目
+     *
+     * @param mode unix 权限位
+     * @param data 内容, 为 null 时读取 file
+     * @param file 源文件或临时文件
+     * @param temp file 是否为临时文件
+     */
+    private record Entry(String name, long size, long lastModified, int mode, boolean directory,
+                         byte @Nullable [] data, @Nullable Path file, boolean temp) {
+
+        void writeTo(@NotNull TarArchiveWriter writer) throws IOException {
+            if (directory) {
+                writer.addDirectory(name, lastModified, mode);
+                return;
+            }
+            try (InputStream inputStream = data != null ? new ByteArrayInputStream(data) : Files.newInputStream(file)) {
+                writer.addEntry(name, size, lastModified, mode, inputStream);
+            } finally {
+                discard();
+            }
+        }
+
+        void discard() throws IOException {
+            if (temp) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // 多个线程替换, 按顺序写入, 与 BackupCompressor 相同
+    private void writeTar(@NotNull List<BackupCompressor.Source> sources, @NotNull Path tar) throws IOException {
+        int threads = backupSettings.threads();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Deque<Future<Entry>> pending = new ArrayDeque<>();
+
+        try (TarArchiveWriter writer = new TarArchiveWriter(tar)) {
+            Iterator<BackupCompressor.Source> iterator = sources.iterator();
+            Path tempFolder = tar.toAbsolutePath().getParent();
+            while (iterator.hasNext() || !pending.isEmpty()) {
+                while (iterator.hasNext() && pending.size() < threads * 2) {
+                    BackupCompressor.Source source = iterator.next();
+                    pending.add(executor.submit(() -> prepare(source, tempFolder)));
+                }
+                await(pending.poll()).writeTo(writer);
+            }
+        } finally {
+            executor.shutdownNow();
+            for (Future<Entry> future : pending) {
+                try {
+                    await(future).discard();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static @NotNull Entry prepare(@NotNull BackupCompressor.Source source, @NotNull Path tempFolder) throws IOException {
+        Path file = source.file();
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        int mode = Tool.unixMode(file, source.directory());
+        if (source.directory()) {
+            return new Entry(source.name(), 0, lastModified, mode, true, null, null, false);
+        }
+        if (source.transform() == null) {
+            return new Entry(source.name(), Files.size(file), lastModified, mode, false, null, file, false);
+        }
+
+        if (Files.size(file) > MEMORY_LIMIT) {
+            Path temp = Files.createTempFile(tempFolder, ".mcp-archive-", ".tmp");
+            try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                source.transform().write(file, outputStream);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            return new Entry(source.name(), Files.size(temp), lastModified, mode, false, null, temp, true);
+        }
+
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        source.transform().write(file, memory);
+        return new Entry(source.name(), memory.size(), lastModified, mode, false, memory.toByteArray(), null, false);
+    }
+
+    private static @NotNull Entry await(@NotNull Future<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing archive");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Failed to write archive entry", e.getCause());
+        }
+    }
+}
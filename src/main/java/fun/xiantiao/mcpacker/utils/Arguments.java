@@ -0,0 +1,45 @@
+package fun.xiantiao.mcpacker.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * 命令行参数
+ * <p>
+ * {@code --name value1 value2} 形式, 选项之后直到下一个 -- 开头的参数都是它的值
+ */
+public class Arguments {
+
+    private final Map<String, List<String>> options = new LinkedHashMap<>();
+
+    public static @NotNull Arguments parse(@NotNull String[] args) {
+        Arguments arguments = new Arguments();
+        List<String> current = null;
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                current = new ArrayList<>();
+                arguments.options.put(arg.substring(2), current);
+            } else if (current != null) {
+                current.add(arg);
+            } else {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+        }
+        return arguments;
+    }
+
+    public boolean has(@NotNull String name) {
+        return options.containsKey(name);
+    }
+
+    public @Nullable String value(@NotNull String name) {
+        List<String> values = options.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    public @NotNull List<String> values(@NotNull String name) {
+        return options.getOrDefault(name, List.of());
+    }
+}
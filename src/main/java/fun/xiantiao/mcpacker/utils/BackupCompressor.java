@@ -0,0 +1,263 @@
+package fun.xiantiao.mcpacker.utils;
+
+import fun.xiantiao.mcpacker.records.BackupSettings;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+
+/**
+ * 多线程压缩备份
+ * <p>
+ * 多个线程同时压缩条目, 单个写入线程按路径顺序写入 zip, 同时在处理中的条目数量有上限以限制内存;
+ * 条目内容可以在压缩前经过处理 (如替换 papi), 不需要先写到磁盘
+ */
+public class BackupCompressor {
+
+    private static final Logger logger = getLogger();
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long MEMORY_LIMIT = 8 * 1024 * 1024; // 更大的条目压缩到临时文件
+
+    private final BackupSettings backupSettings;
+
+    /**
+     * 压缩前对文件内容的处理
+     */
+    @FunctionalInterface
+    public interface Transform {
+        /**
+         * @param file 源文件
+         * @param out  处理后的内容写入这里, 不要关闭
+         */
+        void write(@NotNull Path file, @NotNull OutputStream out) throws IOException;
+    }
+
+    /**
+     * zip 中的一个条目
+     *
+     * @param name      条目名称
+     * @param file      源文件或文件夹
+     * @param transform 内容处理, 为 null 时原样写入
+     * @param directory 是否为文件夹条目
+     */
+    public record Source(@NotNull String name, @NotNull Path file, @Nullable Transform transform, boolean directory) {
+
+        public Source(@NotNull String name, @NotNull Path file, @Nullable Transform transform) {
+            this(name, file, transform, false);
+        }
+
+        /**
+         * @param name 条目名称
+         * @param dir  文件夹
+         * @return 文件夹条目
+         */
+        public static @NotNull Source directory(@NotNull String name, @NotNull Path dir) {
+            return new Source(name, dir, null, true);
+        }
+    }
+
+    /**
+     * 压缩好的条目
+     *
+     * @param mode unix 权限位
+     * @param data 压缩后的数据, 为 null 时读取 file
+     * @param file 临时文件
+     * @param temp file 是否为临时文件
+     */
+    private record CompressedEntry(String name, int method, long crc, long size, long compressedSize, long lastModified,
+                                   int mode, boolean directory, byte @Nullable [] data, @Nullable Path file, boolean temp) {
+
+        void writeTo(@NotNull ZipArchiveWriter writer) throws IOException {
+            if (directory) {
+                writer.addDirectory(name, lastModified, mode);
+                return;
+            }
+            try (InputStream inputStream = data != null ? new ByteArrayInputStream(data) : Files.newInputStream(file)) {
+                writer.addEntry(name, method, crc, size, compressedSize, lastModified, mode, inputStream);
+            } finally {
+                discard();
+            }
+        }
+
+        void discard() throws IOException {
+            if (temp) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    public BackupCompressor(@NotNull BackupSettings backupSettings) {
+        this.backupSettings = backupSettings;
+    }
+
+    /**
+     * 压缩整个文件夹, 条目名称以文件夹名开头
+     *
+     * @param sourceFolder 文件夹
+     * @param zipFileName  输出位置
+     * @throws IOException 失败
+     */
+    public void compress(@NotNull Path sourceFolder, @NotNull Path zipFileName) throws IOException {
+        compress(FileTreeSnapshot.walk(sourceFolder), zipFileName);
+    }
+
+    /**
+     * 按已有的快照压缩文件夹, 不再重新遍历. 文件夹也写入条目, 解压后保留空文件夹
+     *
+     * @param snapshot    文件夹的快照
+     * @param zipFileName 输出位置
+     * @throws IOException 失败
+     */
+    public void compress(@NotNull FileTreeSnapshot snapshot, @NotNull Path zipFileName) throws IOException {
+        Path sourceFolder = snapshot.root();
+        logger.info("compressing {}", sourceFolder);
+
+        List<Source> sources = new ArrayList<>();
+        String root = sourceFolder.getFileName().toString();
+        for (Path dir : snapshot.directories()) {
+            String relativePath = BuildManifest.relativize(sourceFolder, dir);
+            sources.add(Source.directory(relativePath.isEmpty() ? root : root + "/" + relativePath, dir));
+        }
+        for (Path file : snapshot.files()) {
+            sources.add(new Source(root + "/" + BuildManifest.relativize(sourceFolder, file), file, null));
+        }
+        compress(sources, zipFileName);
+    }
+
+    /**
+     * 按顺序压缩条目
+     *
+     * @param sources     条目
+     * @param zipFileName 输出位置
+     * @throws IOException 失败
+     */
+    public void compress(@NotNull List<Source> sources, @NotNull Path zipFileName) throws IOException {
+        int threads = backupSettings.threads();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Deque<Future<CompressedEntry>> pending = new ArrayDeque<>();
+
+        try (ZipArchiveWriter writer = new ZipArchiveWriter(zipFileName)) {
+            Iterator<Source> iterator = sources.iterator();
+            Path tempFolder = zipFileName.toAbsolutePath().getParent();
+            while (iterator.hasNext() || !pending.isEmpty()) {
+                while (iterator.hasNext() && pending.size() < threads * 2) {
+                    Source source = iterator.next();
+                    pending.add(executor.submit(() -> compressEntry(source, tempFolder)));
+                }
+                await(pending.poll()).writeTo(writer);
+            }
+        } finally {
+            executor.shutdownNow();
+            for (Future<CompressedEntry> future : pending) {
+                try {
+                    await(future).discard();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private @NotNull CompressedEntry compressEntry(@NotNull Source source, @NotNull Path tempFolder) throws IOException {
+        Path file = source.file();
+        String name = source.name();
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        int mode = Tool.unixMode(file, source.directory());
+        if (source.directory()) {
+            return new CompressedEntry(name, ZipArchiveWriter.STORED, 0, 0, 0, lastModified, mode, true, null, null, false);
+        }
+        int level = backupSettings.levelOf(file.getFileName().toString());
+        CRC32 crc = new CRC32();
+
+        // 不压缩的条目也先读入内存或临时文件, 写入时不再读源文件: 备份期间被修改的文件 (如运行中的存档)
+        // 两次读取的内容不同会使 CRC 与数据不符. 处理后的大小未知, 按源文件大小决定放在内存还是临时文件
+        Path temp = Files.size(file) > MEMORY_LIMIT ? Files.createTempFile(tempFolder, ".mcp-backup-", ".tmp") : null;
+        ByteArrayOutputStream memory = temp == null ? new ByteArrayOutputStream() : null;
+        boolean stored = level == Deflater.NO_COMPRESSION;
+        Deflater deflater = new Deflater(stored ? Deflater.DEFAULT_COMPRESSION : level, true);
+        try (OutputStream target = temp != null ? new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE) : memory;
+             OutputStream compressed = stored ? target : new DeflaterOutputStream(target, deflater, BUFFER_SIZE);
+             CountingOutputStream outputStream = new CountingOutputStream(new CheckedOutputStream(compressed, crc))) {
+            if (source.transform() != null) {
+                source.transform().write(file, outputStream);
+            } else {
+                try (InputStream inputStream = Files.newInputStream(file)) {
+                    inputStream.transferTo(outputStream);
+                }
+            }
+            outputStream.flush();
+            if (compressed instanceof DeflaterOutputStream deflaterOutputStream) {
+                deflaterOutputStream.finish();
+            }
+            long size = outputStream.count();
+            target.flush();
+            return new CompressedEntry(name, stored ? ZipArchiveWriter.STORED : ZipArchiveWriter.DEFLATED, crc.getValue(), size,
+                    stored ? size : deflater.getBytesWritten(), lastModified, mode, false,
+                    memory != null ? memory.toByteArray() : null, temp, temp != null);
+        } catch (IOException | RuntimeException e) {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+            throw e;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static @NotNull CompressedEntry await(@NotNull Future<CompressedEntry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing backup");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Failed to compress backup entry", e.getCause());
+        }
+    }
+
+    // 记录写入的字节数
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(@NotNull OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte @NotNull [] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long count() {
+            return count;
+        }
+    }
+}
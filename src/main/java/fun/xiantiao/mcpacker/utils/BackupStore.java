@@ -0,0 +1,273 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.Gson;
+import fun.xiantiao.mcpacker.records.BackupSettings;
+import fun.xiantiao.mcpacker.records.Snapshot;
+import fun.xiantiao.mcpacker.records.SnapshotFile;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+import static fun.xiantiao.mcpacker.utils.Tool.*;
+
+/**
+ * 内容寻址的备份存储
+ * <p>
+ * objects/ab/abcdef... 保存压缩后的文件内容, 相同内容只保存一次;
+ * snapshots/时间-文件夹.json 记录每次备份的文件列表
+ */
+public class BackupStore {
+
+    private static final Logger logger = getLogger();
+    private static final Gson GSON = new Gson();
+    private static final String SNAPSHOT_SUFFIX = ".json";
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path objects;
+    private final Path snapshots;
+    private final BackupSettings backupSettings;
+
+    public BackupStore(@NotNull Path root, @NotNull BackupSettings backupSettings) {
+        this.objects = root.resolve("objects");
+        this.snapshots = root.resolve("snapshots");
+        this.backupSettings = backupSettings;
+    }
+
+    /**
+     * 为文件夹创建快照, 大小和修改时间与上一个快照相同的文件直接沿用上次的摘要
+     *
+     * @param sourceFolder 文件夹
+     * @return 快照名称
+     * @throws IOException 失败
+     */
+    public @NotNull String snapshot(@NotNull Path sourceFolder) throws IOException {
+        return snapshot(FileTreeSnapshot.walk(sourceFolder));
+    }
+
+    /**
+     * 按已有的文件夹快照创建备份快照, 大小和修改时间取自遍历时的结果
+     *
+     * @param tree 文件夹的快照
+     * @return 快照名称
+     * @throws IOException 失败
+     */
+    public @NotNull String snapshot(@NotNull FileTreeSnapshot tree) throws IOException {
+        Path sourceFolder = tree.root();
+        String source = sourceFolder.getFileName().toString();
+        logger.info("snapshotting {}", sourceFolder);
+        Files.createDirectories(objects);
+        Files.createDirectories(snapshots);
+
+        String latest = latestSnapshot(source);
+        Map<String, SnapshotFile> previous = latest == null ? Map.of() : readSnapshot(latest).files();
+
+        Map<String, SnapshotFile> entries = new ConcurrentHashMap<>();
+        ParallelExecutor.forEach(tree.files(), backupSettings.threads(), file -> {
+            String relativePath = BuildManifest.relativize(sourceFolder, file);
+            FileTreeSnapshot.Entry entry = tree.get(relativePath);
+            long size = entry.size();
+            long lastModified = TimeUnit.NANOSECONDS.toMillis(entry.lastModified());
+
+            SnapshotFile old = previous.get(relativePath);
+            if (old != null && old.size() == size && old.lastModified() == lastModified && Files.exists(objectPath(old.hash()))) {
+                entries.put(relativePath, old);
+                return;
+            }
+
+            // 内容已存在时不再压缩; 否则以写入时计算的摘要为准, 两次读取之间文件可能被修改
+            String hash = hashFile(file);
+            if (Files.notExists(objectPath(hash))) {
+                hash = writeObject(file);
+            }
+            entries.put(relativePath, new SnapshotFile(hash, size, lastModified));
+        });
+
+        String name = getStringTime() + "-" + source;
+        Snapshot snapshot = new Snapshot(source, System.currentTimeMillis(), new TreeMap<>(entries));
+        Path tmp = snapshots.resolve(name + SNAPSHOT_SUFFIX + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp)) {
+            GSON.toJson(snapshot, writer);
+        }
+        Files.move(tmp, snapshots.resolve(name + SNAPSHOT_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("snapshot {} created, {} files.", name, entries.size());
+        return name;
+    }
+
+    /**
+     * 将快照恢复到目标文件夹
+     *
+     * @param name   快照名称
+     * @param target 目标文件夹, 必须不存在或为空
+     * @throws IOException 失败
+     */
+    public void restore(@NotNull String name, @NotNull Path target) throws IOException {
+        Snapshot snapshot = readSnapshot(name);
+        // 先检查全部条目, 被修改的快照不能写到目标文件夹之外
+        Path root = target.toAbsolutePath().normalize();
+        Map<Path, SnapshotFile> files = new LinkedHashMap<>();
+        for (Map.Entry<String, SnapshotFile> entry : snapshot.files().entrySet()) {
+            Path file = root.resolve(entry.getKey()).normalize();
+            if (!file.startsWith(root) || file.equals(root)) {
+                throw new IOException("Snapshot entry escapes the restore target: " + entry.getKey());
+            }
+            if (!HASH.matcher(entry.getValue().hash()).matches()) {
+                throw new IOException("Invalid object hash in snapshot: " + entry.getValue().hash());
+            }
+            files.put(file, entry.getValue());
+        }
+
+        if (Files.isDirectory(target)) {
+            try (Stream<Path> children = Files.list(target)) {
+                if (children.findAny().isPresent()) {
+                    throw new IOException("Restore target is not empty: " + target);
+                }
+            }
+        }
+
+        for (Map.Entry<Path, SnapshotFile> entry : files.entrySet()) {
+            Path file = entry.getKey();
+            Files.createDirectories(file.getParent());
+            try (InputStream inputStream = new InflaterInputStream(Files.newInputStream(objectPath(entry.getValue().hash())))) {
+                Files.copy(inputStream, file);
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(entry.getValue().lastModified()));
+        }
+        logger.info("snapshot {} restored to {}, {} files.", name, target, snapshot.files().size());
+    }
+
+    /**
+     * 按 retention 删除旧快照, 并删除不再被任何快照引用的数据
+     *
+     * @throws IOException 失败
+     */
+    public void prune() throws IOException {
+        if (backupSettings.retention() <= 0 || Files.notExists(snapshots)) {
+            return;
+        }
+
+        Map<String, List<String>> bySource = new TreeMap<>();
+        for (String name : listSnapshots()) {
+            // 名称为 时间-文件夹
+            String source = name.substring(getStringTime().length() + 1);
+            bySource.computeIfAbsent(source, k -> new ArrayList<>()).add(name);
+        }
+
+        boolean pruned = false;
+        for (List<String> names : bySource.values()) {
+            for (int i = 0; i < names.size() - backupSettings.retention(); i++) {
+                Files.delete(snapshots.resolve(names.get(i) + SNAPSHOT_SUFFIX));
+                logger.info("snapshot {} pruned.", names.get(i));
+                pruned = true;
+            }
+        }
+        if (!pruned) {
+            return;
+        }
+
+        Set<String> referenced = new HashSet<>();
+        for (String name : listSnapshots()) {
+            for (SnapshotFile file : readSnapshot(name).files().values()) {
+                referenced.add(file.hash());
+            }
+        }
+
+        List<Path> unreferenced;
+        try (Stream<Path> stream = Files.walk(objects)) {
+            unreferenced = stream.filter(Files::isRegularFile)
+                    .filter(path -> !referenced.contains(path.getFileName().toString()))
+                    .toList();
+        }
+        for (Path path : unreferenced) {
+            Files.delete(path);
+        }
+        logger.info("{} unreferenced objects deleted.", unreferenced.size());
+    }
+
+    /**
+     * @return 所有快照名称, 按时间排序
+     * @throws IOException 失败
+     */
+    public @NotNull List<String> listSnapshots() throws IOException {
+        if (Files.notExists(snapshots)) {
+            return List.of();
+        }
+        try (Stream<Path> stream = Files.list(snapshots)) {
+            return stream.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(SNAPSHOT_SUFFIX))
+                    .map(name -> name.substring(0, name.length() - SNAPSHOT_SUFFIX.length()))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private @Nullable String latestSnapshot(@NotNull String source) throws IOException {
+        String latest = null;
+        for (String name : listSnapshots()) {
+            if (name.endsWith("-" + source)) {
+                latest = name;
+            }
+        }
+        return latest;
+    }
+
+    private @NotNull Snapshot readSnapshot(@NotNull String name) throws IOException {
+        Path path = snapshots.resolve(name + SNAPSHOT_SUFFIX);
+        if (Files.notExists(path)) {
+            throw new IOException("Snapshot does not exist: " + name);
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            return GSON.fromJson(reader, Snapshot.class);
+        }
+    }
+
+    private @NotNull Path objectPath(@NotNull String hash) {
+        return objects.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * 压缩到临时文件, 摘要在写入的同时计算, 再移动到摘要对应的位置;
+     * 读取期间文件被修改也只会得到另一份完整内容的摘要, 中断不会留下不完整的数据
+     *
+     * @return 写入内容的摘要
+     */
+    private @NotNull String writeObject(@NotNull Path file) throws IOException {
+        Files.createDirectories(objects);
+        Path tmp = Files.createTempFile(objects, "object-", ".tmp");
+        MessageDigest digest = sha256();
+        Deflater deflater = new Deflater(backupSettings.levelOf(file.getFileName().toString()));
+        try (OutputStream outputStream = new DigestOutputStream(
+                new DeflaterOutputStream(Files.newOutputStream(tmp), deflater, 256 * 1024), digest)) {
+            Files.copy(file, outputStream);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        } finally {
+            deflater.end();
+        }
+
+        String hash = HexFormat.of().formatHex(digest.digest());
+        Path object = objectPath(hash);
+        if (Files.exists(object)) {
+            Files.delete(tmp);
+            return hash;
+        }
+        Files.createDirectories(object.getParent());
+        Files.move(tmp, object, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return hash;
+    }
+}
@@ -0,0 +1,237 @@
+package fun.xiantiao.mcpacker.utils;
+
+import fun.xiantiao.mcpacker.DaemonClient;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.WriterAppender;
+import org.apache.logging.log4j.core.async.AsyncLoggerConfig;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.jmx.RingBufferAdmin;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+
+/**
+ * 常驻的构建进程, 通过 Unix domain socket 执行 {@link DaemonClient} 发来的命令
+ * <p>
+ * JVM (已加载的类, JIT), 解析过的设置和变量缓存在多次构建间保留, 重复构建不再有冷启动的开销.
+ * 命令依次执行, 执行期间的日志同时发送给客户端
+ */
+public class BuildDaemon {
+
+    private static final Logger logger = getLogger();
+
+    private static final String APPENDER_NAME = "DaemonClient";
+    private static final String PATTERN = "%d{yyyy-MM-dd HH:mm:ss} [%level] %msg%n%throwable";
+    private static final int CHUNK = 16 * 1024; // writeUTF 最多 65535 字节
+    private static final long DRAIN_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @param args 客户端的参数
+         * @throws Exception 命令失败, 客户端得到退出码 1
+         */
+        void handle(@NotNull String[] args) throws Exception;
+    }
+
+    private final Path socket;
+    private final Handler handler;
+
+    public BuildDaemon(@NotNull Path socket, @NotNull Handler handler) {
+        this.socket = socket;
+        this.handler = handler;
+    }
+
+    /**
+     * 开始接收命令, 直到客户端发送 --stop 或线程被中断
+     *
+     * @throws IOException           无法监听
+     * @throws IllegalStateException 已有守护进程在运行
+     */
+    public void run() throws IOException {
+        if (Files.exists(socket)) {
+            if (isRunning()) {
+                throw new IllegalStateException("A daemon is already running on " + socket);
+            }
+            // 上次没有正常退出留下的 socket 文件
+            Files.delete(socket);
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Thread cleanup = new Thread(this::deleteSocket, "mcp-daemon-cleanup");
+            Runtime.getRuntime().addShutdownHook(cleanup);
+            logger.info("Daemon listening on {}", socket);
+
+            try {
+                boolean running = true;
+                while (running && !Thread.currentThread().isInterrupted()) {
+                    try (SocketChannel channel = server.accept()) {
+                        running = serve(channel);
+                    } catch (IOException e) {
+                        logger.warn("Failed to serve daemon client.", e);
+                    }
+                }
+            } finally {
+                deleteSocket();
+                Runtime.getRuntime().removeShutdownHook(cleanup);
+            }
+        }
+    }
+
+    // 是否有守护进程在监听
+    private boolean isRunning() {
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void deleteSocket() {
+        try {
+            Files.deleteIfExists(socket);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return 是否继续接收命令
+     */
+    private boolean serve(@NotNull SocketChannel channel) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        String[] args = new String[input.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = input.readUTF();
+        }
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        if (args.length == 1 && "--stop".equals(args[0])) {
+            logger.info("Daemon stopping.");
+            exit(output, 0);
+            return false;
+        }
+
+        logger.info("Daemon running: {}", String.join(" ", args));
+        long start = System.nanoTime();
+        int code = 0;
+        ClientWriter writer = new ClientWriter(output);
+        WriterAppender appender = attach(writer);
+        try {
+            handler.handle(args);
+        } catch (Exception e) {
+            logger.error("Command failed.", e);
+            code = 1;
+        } finally {
+            detach(appender);
+        }
+        logger.info("Daemon finished in {} ms", (System.nanoTime() - start) / 1_000_000);
+
+        if (!writer.failed) {
+            exit(output, code);
+        }
+        return true;
+    }
+
+    private static void exit(@NotNull DataOutputStream output, int code) throws IOException {
+        output.writeByte(DaemonClient.EXIT);
+        output.writeInt(code);
+        output.flush();
+    }
+
+    // 把根日志的输出也发送给客户端
+    private static @NotNull WriterAppender attach(@NotNull Writer writer) {
+        LoggerContext context = (LoggerContext) LogManager.getContext(false);
+        Configuration configuration = context.getConfiguration();
+        WriterAppender appender = WriterAppender.newBuilder()
+                .setName(APPENDER_NAME)
+                .setTarget(writer)
+                .setLayout(PatternLayout.newBuilder().withPattern(PATTERN).withConfiguration(configuration).build())
+                .build();
+        appender.start();
+        configuration.getRootLogger().addAppender(appender, null, null);
+        context.updateLoggers();
+        return appender;
+    }
+
+    private static void detach(@NotNull WriterAppender appender) {
+        LoggerContext context = (LoggerContext) LogManager.getContext(false);
+        drain(context);
+        context.getConfiguration().getRootLogger().removeAppender(APPENDER_NAME);
+        context.updateLoggers();
+        appender.stop();
+    }
+
+    // 根日志为异步 (AsyncRoot) 时, 等待环形缓冲区中的事件写出, 否则命令最后的日志不会发给客户端
+    private static void drain(@NotNull LoggerContext context) {
+        if (!(context.getConfiguration().getRootLogger() instanceof AsyncLoggerConfig root)) {
+            return;
+        }
+        RingBufferAdmin ringBuffer = root.createRingBufferAdmin(context.getName());
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT;
+        while (ringBuffer.getRemainingCapacity() < ringBuffer.getBufferSize() && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // 日志按帧写给客户端, 客户端断开后不再发送, 命令继续执行
+    private static class ClientWriter extends Writer {
+
+        private final DataOutputStream output;
+        private volatile boolean failed;
+
+        ClientWriter(@NotNull DataOutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public synchronized void write(char @NotNull [] buffer, int offset, int length) {
+            if (failed) {
+                return;
+            }
+            try {
+                for (int i = offset; i < offset + length; i += CHUNK) {
+                    output.writeByte(DaemonClient.OUTPUT);
+                    output.writeUTF(new String(buffer, i, Math.min(CHUNK, offset + length - i)));
+                }
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+
+        @Override
+        public synchronized void flush() {
+            if (failed) {
+                return;
+            }
+            try {
+                output.flush();
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import fun.xiantiao.mcpacker.records.ManifestEntry;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+
+/**
+ * 增量构建清单, 记录 built 中每个文件对应的源文件摘要和用到的 papi 值
+ * <p>
+ * key 为相对 default 的路径, 统一使用 / 分隔
+ */
+public class BuildManifest {
+
+    private static final Logger logger = getLogger();
+    private static final Gson GSON = new Gson();
+    private static final Type ENTRIES_TYPE = new TypeToken<Map<String, ManifestEntry>>() {}.getType();
+
+    private final Map<String, ManifestEntry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 读取清单
+     *
+     * @param path 清单路径
+     * @return 清单, 文件不存在或损坏时返回 null
+     */
+    public static @Nullable BuildManifest load(@NotNull Path path) {
+        if (Files.notExists(path)) {
+            return null;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            Map<String, ManifestEntry> entries = GSON.fromJson(reader, ENTRIES_TYPE);
+            BuildManifest manifest = new BuildManifest();
+            if (entries != null) {
+                manifest.entries.putAll(entries);
+            }
+            return manifest;
+        } catch (IOException | JsonParseException e) {
+            logger.warn("Failed to read build manifest [{}], doing a full build.", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * 写入清单, 先写临时文件再替换, 避免中断时留下损坏的清单
+     *
+     * @param path 清单路径
+     * @throws IOException 写入失败
+     */
+    public void save(@NotNull Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp)) {
+            GSON.toJson(new TreeMap<>(entries), ENTRIES_TYPE, writer);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public @Nullable ManifestEntry get(@NotNull String relativePath) {
+        return entries.get(relativePath);
+    }
+
+    public void put(@NotNull String relativePath, @NotNull ManifestEntry entry) {
+        entries.put(relativePath, entry);
+    }
+
+    public void remove(@NotNull String relativePath) {
+        entries.remove(relativePath);
+    }
+
+    public @NotNull Set<String> paths() {
+        return entries.keySet();
+    }
+
+    public static @NotNull String relativize(@NotNull Path root, @NotNull Path path) {
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+}
@@ -0,0 +1,263 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+
+/**
+ * 构建各阶段的耗时, 读写字节数, 文件数和替换的 papi 数量
+ * <p>
+ * 每个阶段按 files 和 servers/&lt;名称&gt; 分组统计, 分组的耗时为组内每个文件处理时间之和 (多线程时可能大于阶段耗时);
+ * 运行结束时输出汇总表, 并写入 JSON 和 Prometheus textfile 格式的报告.
+ * 逐文件统计的阶段在运行较久时通过 {@link ProgressReporter} 定期输出进度
+ */
+public class BuildMetrics {
+
+    private static final Logger logger = getLogger();
+
+    private final long startedAt = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final List<Stage> stages = new ArrayList<>();
+
+    /**
+     * 开始一个阶段, 关闭时记录耗时
+     *
+     * @param name 阶段名称
+     * @param root 文件分组相对的根目录 (default 或 built), 没有逐文件统计时为 null
+     * @return 阶段
+     */
+    public synchronized @NotNull Stage stage(@NotNull String name, @Nullable Path root) {
+        Stage stage = new Stage(name, root);
+        stages.add(stage);
+        return stage;
+    }
+
+    public static final class Stage implements AutoCloseable {
+
+        private final String name;
+        private final @Nullable Path root;
+        private final long start = System.nanoTime();
+        private volatile long nanos = -1;
+        private final Counters total = new Counters();
+        private final Map<String, Counters> groups = new ConcurrentHashMap<>();
+        private final ProgressReporter progress;
+
+        private Stage(@NotNull String name, @Nullable Path root) {
+            this.name = name;
+            this.root = root;
+            this.progress = new ProgressReporter(name);
+        }
+
+        /**
+         * 记录处理完的一个文件
+         *
+         * @param path          文件 (root 下的路径)
+         * @param nanos         处理耗时
+         * @param bytesRead     读取的字节数
+         * @param bytesWritten  写入的字节数
+         * @param substitutions 替换的 papi 数量
+         */
+        public void file(@NotNull Path path, long nanos, long bytesRead, long bytesWritten, int substitutions) {
+            total.add(nanos, bytesRead, bytesWritten, substitutions);
+            groups.computeIfAbsent(group(path), key -> new Counters()).add(nanos, bytesRead, bytesWritten, substitutions);
+            progress.add(bytesRead);
+        }
+
+        /**
+         * 记录整个阶段写入的字节数, 用于没有逐文件统计的阶段 (如备份)
+         */
+        public void written(long bytes) {
+            total.bytesWritten.add(bytes);
+        }
+
+        @Override
+        public void close() {
+            nanos = System.nanoTime() - start;
+            progress.finish();
+        }
+
+        private long nanos() {
+            return nanos < 0 ? System.nanoTime() - start : nanos;
+        }
+
+        // files, servers/<名称>, 其他位置取第一级
+        private @NotNull String group(@NotNull Path path) {
+            if (root == null || !path.startsWith(root)) {
+                return ".";
+            }
+            Path relative = root.relativize(path);
+            if (relative.getNameCount() < 2) {
+                return ".";
+            }
+            String first = relative.getName(0).toString();
+            if (first.equals("servers") && relative.getNameCount() > 2) {
+                return first + "/" + relative.getName(1);
+            }
+            return first;
+        }
+    }
+
+    private static final class Counters {
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder files = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder substitutions = new LongAdder();
+
+        void add(long nanos, long bytesRead, long bytesWritten, int substitutions) {
+            this.nanos.add(nanos);
+            this.files.increment();
+            this.bytesRead.add(bytesRead);
+            this.bytesWritten.add(bytesWritten);
+            this.substitutions.add(substitutions);
+        }
+
+        @NotNull JsonObject toJson(long nanos) {
+            JsonObject object = new JsonObject();
+            object.addProperty("seconds", nanos / 1e9);
+            object.addProperty("files", files.sum());
+            object.addProperty("bytesRead", bytesRead.sum());
+            object.addProperty("bytesWritten", bytesWritten.sum());
+            object.addProperty("substitutions", substitutions.sum());
+            return object;
+        }
+    }
+
+    /**
+     * 输出汇总表
+     */
+    public synchronized void logSummary() {
+        logger.info(String.format(Locale.ROOT, "%-20s %10s %8s %12s %12s %8s", "stage", "time(ms)", "files", "read", "written", "papi"));
+        for (Stage stage : stages) {
+            logRow(stage.name, stage.nanos(), stage.total);
+            new TreeMap<>(stage.groups).forEach((group, counters) ->
+                    logRow("  " + group, counters.nanos.sum(), counters));
+        }
+        logger.info(String.format(Locale.ROOT, "%-20s %10d", "total", (System.nanoTime() - startNanos) / 1_000_000));
+    }
+
+    private static void logRow(@NotNull String name, long nanos, @NotNull Counters counters) {
+        logger.info(String.format(Locale.ROOT, "%-20s %10d %8d %12s %12s %8d", name, nanos / 1_000_000,
+                counters.files.sum(), formatBytes(counters.bytesRead.sum()), formatBytes(counters.bytesWritten.sum()),
+                counters.substitutions.sum()));
+    }
+
+    /**
+     * 写入 JSON 报告
+     *
+     * @param path 报告路径
+     * @throws IOException 写入失败
+     */
+    public synchronized void writeJson(@NotNull Path path) throws IOException {
+        JsonObject report = new JsonObject();
+        report.addProperty("startedAt", startedAt);
+        report.addProperty("seconds", (System.nanoTime() - startNanos) / 1e9);
+        JsonObject stagesJson = new JsonObject();
+        for (Stage stage : stages) {
+            JsonObject stageJson = stage.total.toJson(stage.nanos());
+            JsonObject groupsJson = new JsonObject();
+            new TreeMap<>(stage.groups).forEach((group, counters) ->
+                    groupsJson.add(group, counters.toJson(counters.nanos.sum())));
+            stageJson.add("groups", groupsJson);
+            stagesJson.add(stage.name, stageJson);
+        }
+        report.add("stages", stagesJson);
+
+        write(path, new GsonBuilder().setPrettyPrinting().create().toJson(report));
+    }
+
+    /**
+     * 写入 Prometheus textfile 格式的报告, 可由 node_exporter 的 textfile collector 收集
+     *
+     * @param path 报告路径, 以 .prom 结尾
+     * @throws IOException 写入失败
+     */
+    public synchronized void writePrometheus(@NotNull Path path) throws IOException {
+        StringBuilder out = new StringBuilder();
+        metric(out, "mcp_build_last_run_timestamp_seconds", "Start time of the last build.");
+        out.append("mcp_build_last_run_timestamp_seconds ").append(startedAt / 1000).append('\n');
+        metric(out, "mcp_build_duration_seconds", "Wall time of the last build.");
+        out.append("mcp_build_duration_seconds ").append((System.nanoTime() - startNanos) / 1e9).append('\n');
+
+        String[][] counters = {
+                {"mcp_build_stage_seconds", "Wall time of each stage, summed file time for groups."},
+                {"mcp_build_stage_files", "Files processed by each stage."},
+                {"mcp_build_stage_bytes_read", "Bytes read by each stage."},
+                {"mcp_build_stage_bytes_written", "Bytes written by each stage."},
+                {"mcp_build_stage_substitutions", "Placeholders replaced by each stage."},
+        };
+        for (int i = 0; i < counters.length; i++) {
+            metric(out, counters[i][0], counters[i][1]);
+            for (Stage stage : stages) {
+                sample(out, counters[i][0], stage.name, null, value(i, stage.nanos(), stage.total));
+                for (Map.Entry<String, Counters> group : new TreeMap<>(stage.groups).entrySet()) {
+                    Counters value = group.getValue();
+                    sample(out, counters[i][0], stage.name, group.getKey(), value(i, value.nanos.sum(), value));
+                }
+            }
+        }
+
+        write(path, out.toString());
+    }
+
+    private static double value(int index, long nanos, @NotNull Counters counters) {
+        return switch (index) {
+            case 0 -> nanos / 1e9;
+            case 1 -> counters.files.sum();
+            case 2 -> counters.bytesRead.sum();
+            case 3 -> counters.bytesWritten.sum();
+            default -> counters.substitutions.sum();
+        };
+    }
+
+    private static void metric(@NotNull StringBuilder out, @NotNull String name, @NotNull String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+    }
+
+    private static void sample(@NotNull StringBuilder out, @NotNull String name, @NotNull String stage,
+                               @Nullable String group, double value) {
+        out.append(name).append("{stage=\"").append(stage).append('"');
+        if (group != null) {
+            out.append(",group=\"").append(group.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        out.append("} ").append(value).append('\n');
+    }
+
+    // 先写临时文件再替换, 收集方不会读到写了一半的报告
+    private static void write(@NotNull Path path, @NotNull String content) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp)) {
+            writer.write(content);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static @NotNull String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f KiB", bytes / 1024.0);
+        }
+        return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024.0 * 1024));
+    }
+}
@@ -0,0 +1,224 @@
+package fun.xiantiao.mcpacker.utils;
+
+import fun.xiantiao.mcpacker.enums.SwapMode;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+
+/**
+ * 完整构建先写入暂存文件夹, 完成后原子地切换为 built, 构建期间和构建中断后 built 始终是上一次的完整结果
+ * <p>
+ * 暂存文件夹 (building-编号) 和换下来的旧文件夹 (retired-编号) 都在 built 旁边的 generations 文件夹中,
+ * 与 built 在同一分区才能原子重命名. 旧文件夹在后台线程删除, 不占用构建时间;
+ * 进程在删除完成前退出时, 下次构建继续删除
+ */
+public class BuildPublisher {
+
+    private static final Logger logger = getLogger();
+
+    private static final String BUILDING = "building-";
+    private static final String RETIRED = "retired-";
+
+    // 后台删除依次执行, 守护进程中前后两次构建不会同时删除同一个文件夹
+    private static final Object DELETE_LOCK = new Object();
+
+    @FunctionalInterface
+    public interface Build {
+        /**
+         * @param staging 暂存文件夹, 已创建且为空
+         * @throws IOException 构建失败, built 保持不变
+         */
+        void into(@NotNull Path staging) throws IOException;
+    }
+
+    private final Path target;
+    private final Path generations;
+    private final SwapMode mode;
+
+    /**
+     * @param target      built 文件夹
+     * @param generations 暂存和旧文件夹所在的文件夹, 需要与 target 在同一分区
+     * @param mode        切换方式
+     */
+    public BuildPublisher(@NotNull Path target, @NotNull Path generations, @NotNull SwapMode mode) {
+        this.target = target;
+        this.generations = generations;
+        this.mode = mode;
+    }
+
+    /**
+     * 在暂存文件夹中构建, 成功后切换为 built, 失败时删除暂存文件夹
+     *
+     * @param build   构建
+     * @param metrics 记录切换耗时, 可以为 null
+     * @throws IOException 构建或切换失败
+     */
+    public void build(@NotNull Build build, @Nullable BuildMetrics metrics) throws IOException {
+        Path staging = stage();
+        try {
+            build.into(staging);
+            BuildMetrics.Stage stage = metrics == null ? null : metrics.stage("publish", null);
+            try {
+                publish(staging);
+            } finally {
+                if (stage != null) {
+                    stage.close();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            deleteLater(List.of(staging));
+            throw e;
+        }
+    }
+
+    /**
+     * 创建新的暂存文件夹, 同时在后台删除中断的构建和上次没有删完的旧文件夹
+     *
+     * @return 暂存文件夹
+     * @throws IOException 创建失败
+     */
+    public @NotNull Path stage() throws IOException {
+        Files.createDirectories(generations);
+        List<Path> stale = list();
+        Path live = live();
+        if (live != null) {
+            stale.removeIf(path -> path.toAbsolutePath().normalize().equals(live));
+        }
+
+        long id = System.currentTimeMillis();
+        while (true) {
+            Path staging = generations.resolve(BUILDING + id);
+            try {
+                Files.createDirectory(staging);
+                deleteLater(stale);
+                return staging;
+            } catch (FileAlreadyExistsException e) {
+                id++;
+            }
+        }
+    }
+
+    /**
+     * 把构建完成的暂存文件夹切换为 built, 旧的内容在后台删除
+     *
+     * @param staging {@link #stage()} 创建的暂存文件夹
+     * @throws IOException 切换失败
+     */
+    public void publish(@NotNull Path staging) throws IOException {
+        String id = staging.getFileName().toString().substring(BUILDING.length());
+        Path retired = generations.resolve(RETIRED + id);
+        List<Path> old = new ArrayList<>();
+        Path previous = live();
+        if (previous != null) {
+            old.add(previous);
+        }
+
+        if (mode == SwapMode.Symlink) {
+            Path link = target.resolveSibling(target.getFileName() + ".link");
+            Files.deleteIfExists(link);
+            Files.createSymbolicLink(link, target.toAbsolutePath().getParent().relativize(staging.toAbsolutePath()));
+            if (Files.exists(target, LinkOption.NOFOLLOW_LINKS) && !Files.isSymbolicLink(target)) {
+                // 第一次切换, built 还是普通文件夹, 与 rename 一样需要先移走
+                Files.move(target, retired, StandardCopyOption.ATOMIC_MOVE);
+                old.add(retired);
+            }
+            // rename(2) 原子地替换已有的链接, 任何时刻 built 都指向完整的一代
+            Files.move(link, target, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                Files.move(target, retired, StandardCopyOption.ATOMIC_MOVE);
+                old.add(retired);
+            }
+            // 两次重命名之间中断时由 recover 继续
+            Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+        logger.info("Published {} as {}", staging.getFileName(), target);
+        deleteLater(old);
+    }
+
+    /**
+     * 上次切换在两次重命名之间中断时 built 不存在, 恢复它. 需要在创建 built 中的文件夹之前调用
+     * <p>
+     * 与换下来的旧文件夹编号相同的暂存文件夹已经构建完成, 继续切换; 否则把旧文件夹放回去
+     *
+     * @param target      built 文件夹
+     * @param generations 暂存和旧文件夹所在的文件夹
+     * @throws IOException 恢复失败
+     */
+    public static void recover(@NotNull Path target, @NotNull Path generations) throws IOException {
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS) || Files.notExists(generations)) {
+            return;
+        }
+
+        Path retired = null;
+        try (Stream<Path> stream = Files.list(generations)) {
+            for (Path path : (Iterable<Path>) stream::iterator) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(RETIRED) && (retired == null || name.compareTo(retired.getFileName().toString()) > 0)) {
+                    retired = path;
+                }
+            }
+        }
+        if (retired == null) {
+            return;
+        }
+
+        Path building = generations.resolve(BUILDING + retired.getFileName().toString().substring(RETIRED.length()));
+        if (Files.isDirectory(building)) {
+            Files.move(building, target, StandardCopyOption.ATOMIC_MOVE);
+            logger.warn("Recovered interrupted swap, published {}", building.getFileName());
+        } else {
+            Files.move(retired, target, StandardCopyOption.ATOMIC_MOVE);
+            logger.warn("Recovered interrupted swap, restored {}", retired.getFileName());
+        }
+    }
+
+    // built 为符号链接时其指向的文件夹
+    private @Nullable Path live() throws IOException {
+        if (!Files.isSymbolicLink(target)) {
+            return null;
+        }
+        return target.toAbsolutePath().resolveSibling(Files.readSymbolicLink(target)).normalize();
+    }
+
+    private @NotNull List<Path> list() throws IOException {
+        try (Stream<Path> stream = Files.list(generations)) {
+            return new ArrayList<>(stream.toList());
+        }
+    }
+
+    // 不是守护线程, 单次运行时进程在删除完成后才退出, 但 built 已经切换完成
+    private static void deleteLater(@NotNull List<Path> paths) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            synchronized (DELETE_LOCK) {
+                for (Path path : paths) {
+                    long start = System.nanoTime();
+                    try {
+                        if (Files.isSymbolicLink(path)) {
+                            Files.delete(path);
+                        } else if (Files.exists(path)) {
+                            Tool.deleteFolder(path);
+                        } else {
+                            continue;
+                        }
+                        logger.info("Deleted old build {} in {} ms", path.getFileName(), (System.nanoTime() - start) / 1_000_000);
+                    } catch (IOException e) {
+                        logger.warn("Failed to delete old build {}, retrying on the next build.", path, e);
+                    }
+                }
+            }
+        }, "mcp-build-cleanup");
+        thread.start();
+    }
+}
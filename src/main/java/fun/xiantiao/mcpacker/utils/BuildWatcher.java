@@ -0,0 +1,151 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.JsonObject;
+import fun.xiantiao.mcpacker.records.BuildSettings;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * 监听 default 与设置文件, 变化后只重新构建受影响的输出
+ * <p>
+ * 一段时间内的连续变化合并为一次处理; default 中的文件变化只更新对应的输出,
+ * 设置变化只重新替换用到的 papi 值发生变化的文件 (构建选项变化时执行完整的增量构建)
+ */
+public class BuildWatcher {
+
+    private static final Logger logger = getLogger();
+
+    @FunctionalInterface
+    public interface SettingsLoader {
+        JsonObject load() throws IOException;
+    }
+
+    private final Path source;
+    private final Path target;
+    private final Path manifestPath;
+    private final Path indexPath;
+    private final Path settingsFile;
+    private final SettingsLoader settingsLoader;
+    private final long debounceMillis;
+
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+
+    public BuildWatcher(@NotNull Path source, @NotNull Path target, @NotNull Path manifestPath, @NotNull Path indexPath,
+                        @NotNull Path settingsFile, @NotNull SettingsLoader settingsLoader, long debounceMillis) {
+        this.source = source;
+        this.target = target;
+        this.manifestPath = manifestPath;
+        this.indexPath = indexPath;
+        this.settingsFile = settingsFile;
+        this.settingsLoader = settingsLoader;
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * 开始监听, 直到线程被中断
+     *
+     * @param buildSettings     当前构建选项
+     * @param placeholdersUtils 当前 papi
+     * @throws IOException 无法监听
+     */
+    public void run(@NotNull BuildSettings buildSettings, @NotNull PlaceholdersUtils placeholdersUtils) throws IOException {
+        IncrementalBuilder builder = new IncrementalBuilder(source, target, manifestPath, indexPath, buildSettings, placeholdersUtils);
+
+        try (WatchService watchService = source.getFileSystem().newWatchService()) {
+            registerAll(watchService, source);
+            Path settingsFolder = settingsFile.toAbsolutePath().getParent();
+            directories.put(settingsFolder.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), settingsFolder);
+            logger.info("Watching {} and {} for changes...", source, settingsFile.getFileName());
+
+            while (!Thread.currentThread().isInterrupted()) {
+                Set<Path> changed = new LinkedHashSet<>();
+                boolean[] settingsChanged = {false};
+                boolean[] overflow = {false};
+
+                WatchKey key = watchService.take();
+                // 等待变化停止
+                while (key != null) {
+                    collect(watchService, key, changed, settingsChanged, overflow);
+                    key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+                }
+
+                if (changed.isEmpty() && !settingsChanged[0] && !overflow[0]) {
+                    continue; // 数据文件夹中其他文件的变化
+                }
+
+                long start = System.nanoTime();
+                try {
+                    if (settingsChanged[0]) {
+                        logger.info("Settings changed, reloading.");
+                        JsonObject settings = settingsLoader.load();
+                        BuildSettings newBuildSettings = BuildSettings.of(settings);
+                        builder = new IncrementalBuilder(source, target, manifestPath, indexPath, newBuildSettings,
+                                new PlaceholdersUtils(settings));
+                        if (newBuildSettings.equals(buildSettings)) {
+                            builder.refresh();
+                        } else {
+                            builder.build();
+                        }
+                        buildSettings = newBuildSettings;
+                    }
+
+                    if (overflow[0]) {
+                        builder.build();
+                    } else if (!changed.isEmpty()) {
+                        builder.update(changed);
+                    }
+                    logger.info("Rebuilt in {} ms.", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                } catch (Exception e) {
+                    // 构建失败不退出, 等待下一次修改
+                    logger.error("Rebuild failed: {}", e.toString(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void collect(@NotNull WatchService watchService, @NotNull WatchKey key, @NotNull Set<Path> changed,
+                         boolean[] settingsChanged, boolean[] overflow) throws IOException {
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow[0] = true;
+                continue;
+            }
+            if (directory == null) {
+                continue;
+            }
+
+            Path path = directory.resolve((Path) event.context());
+            if (path.startsWith(source)) {
+                changed.add(path);
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    registerAll(watchService, path);
+                }
+            } else if (path.getFileName().equals(settingsFile.getFileName())) {
+                settingsChanged[0] = true;
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    private void registerAll(@NotNull WatchService watchService, @NotNull Path root) throws IOException {
+        try (Stream<Path> stream = Files.walk(root)) {
+            for (Path directory : (Iterable<Path>) stream.filter(Files::isDirectory)::iterator) {
+                directories.put(directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), directory);
+            }
+        }
+    }
+}
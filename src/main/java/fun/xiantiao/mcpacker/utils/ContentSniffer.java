@@ -0,0 +1,159 @@
+package fun.xiantiao.mcpacker.utils;
+
+import fun.xiantiao.mcpacker.enums.ContentType;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 不解码文本, 直接在字节上判断文件是否需要替换 papi
+ * <p>
+ * 开头的魔数或 NUL 字节判断为二进制; 文本文件按 8 字节一组查找 $(mcp. (UTF-8 下与 ASCII 相同),
+ * 小文件读入复用的缓冲区, 大文件分段映射到内存
+ */
+public final class ContentSniffer {
+
+    private static final byte[] MARKER = PlaceholderRenderer.TOKEN_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final long DOLLARS = 0x2424242424242424L; // 8 个 '$'
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private static final int HEAD_SIZE = 8 * 1024;          // 判断二进制的开头长度
+    private static final int BUFFER_SIZE = 256 * 1024;      // 小于该大小的文件整个读入
+    private static final long MAP_SIZE = 1L << 30;          // 大文件每次映射的长度
+
+    private static final byte[][] MAGICS = {
+            {'P', 'K', 3, 4},                       // zip, jar
+            {(byte) 0x1F, (byte) 0x8B},             // gzip, 压缩的 nbt
+            {(byte) 0x89, 'P', 'N', 'G'},           // png
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}, // jpeg
+            {'G', 'I', 'F', '8'},                   // gif
+            {'O', 'g', 'g', 'S'},                   // ogg
+            {(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE}, // class
+    };
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+
+    private ContentSniffer() {
+    }
+
+    /**
+     * @param file 文件
+     * @return 文件类型
+     * @throws IOException 读取失败
+     */
+    public static @NotNull ContentType sniff(@NotNull Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < BUFFER_SIZE) {
+                ByteBuffer buffer = BUFFERS.get().clear();
+                while (buffer.position() < size) {
+                    if (channel.read(buffer) < 0) {
+                        break;
+                    }
+                }
+                buffer.flip();
+                return sniff(buffer);
+            }
+
+            ContentType type = null;
+            for (long position = 0; position < size; position += MAP_SIZE - MARKER.length + 1) {
+                long length = Math.min(MAP_SIZE, size - position);
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN);
+                if (type == null) {
+                    type = sniff(buffer);
+                    if (type != ContentType.Plain) {
+                        return type;
+                    }
+                } else if (indexOfMarker(buffer) >= 0) {
+                    return ContentType.Templated;
+                }
+                if (position + length >= size) {
+                    break;
+                }
+            }
+            return ContentType.Plain;
+        }
+    }
+
+    private static @NotNull ContentType sniff(@NotNull ByteBuffer buffer) {
+        if (isBinary(buffer)) {
+            return ContentType.Binary;
+        }
+        return indexOfMarker(buffer) >= 0 ? ContentType.Templated : ContentType.Plain;
+    }
+
+    // 开头是已知的魔数或包含 NUL
+    private static boolean isBinary(@NotNull ByteBuffer buffer) {
+        int limit = Math.min(buffer.limit(), HEAD_SIZE);
+        for (byte[] magic : MAGICS) {
+            if (startsWith(buffer, magic)) {
+                return true;
+            }
+        }
+        for (int i = 0; i < limit; i++) {
+            if (buffer.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(@NotNull ByteBuffer buffer, byte @NotNull [] prefix) {
+        if (buffer.limit() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 查找 $(mcp., 每次比较 8 个字节中是否有 '$', 有时再逐个确认
+     *
+     * @return 位置, 没有时为 -1
+     */
+    static int indexOfMarker(@NotNull ByteBuffer buffer) {
+        int limit = buffer.limit();
+        int i = 0;
+        for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+            long x = buffer.getLong(i) ^ DOLLARS;
+            long found = (x - ONES) & ~x & HIGHS; // 等于 '$' 的字节最高位为 1, 更高的字节可能误报
+            while (found != 0) {
+                int index = i + (Long.numberOfTrailingZeros(found) >>> 3);
+                if (matches(buffer, index)) {
+                    return index;
+                }
+                found &= found - 1;
+            }
+        }
+        for (; i < limit; i++) {
+            if (buffer.get(i) == '$' && matches(buffer, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(@NotNull ByteBuffer buffer, int index) {
+        if (index + MARKER.length > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < MARKER.length; i++) {
+            if (buffer.get(index + i) != MARKER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
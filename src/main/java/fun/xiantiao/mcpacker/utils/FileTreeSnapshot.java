@@ -0,0 +1,264 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+import static fun.xiantiao.mcpacker.utils.Tool.matchesSuffix;
+
+/**
+ * 一次遍历得到的文件夹快照, 备份, 清理, 复制和替换共用, 不再各自遍历和读取文件属性
+ * <p>
+ * 通过 {@link Files#walkFileTree} 遍历, 大小和修改时间取自遍历时得到的 {@link BasicFileAttributes}.
+ * 文件夹条目的大小为子树中文件的总大小, 摘要由子树中每个条目的路径, 大小和修改时间得到,
+ * 与保存的上次快照比较即可知道整个子树是否变化. key 为相对路径, 使用 / 分隔, 根为 ""
+ */
+public class FileTreeSnapshot {
+
+    private static final Logger logger = getLogger();
+    private static final Gson GSON = new Gson();
+
+    // 修改时间与快照时间太接近的文件, 可能在快照之后又被修改而时间不变, 不认为没有变化
+    private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * @param directory    是否为文件夹
+     * @param size         文件大小, 文件夹为子树中文件的总大小
+     * @param lastModified 修改时间 (纳秒)
+     * @param digest       条目的摘要, 文件夹包含整个子树
+     */
+    public record Entry(boolean directory, long size, long lastModified, long digest) {
+    }
+
+    // 保存的格式
+    private record Saved(long taken, Map<String, Entry> entries) {
+    }
+
+    private final Path root;
+    private final long taken;
+    private final NavigableMap<String, Entry> entries;
+
+    private FileTreeSnapshot(@NotNull Path root, long taken, @NotNull NavigableMap<String, Entry> entries) {
+        this.root = root;
+        this.taken = taken;
+        this.entries = entries;
+    }
+
+    /**
+     * 遍历文件夹, 符号链接按其指向的文件记录, 不进入链接的文件夹 (与 Files.walk 相同).
+     * root 本身为符号链接时 (built 使用 symlink 切换) 遍历其指向的文件夹
+     *
+     * @param root 文件夹, 不存在时为空快照
+     * @return 快照
+     * @throws IOException 遍历失败
+     */
+    public static @NotNull FileTreeSnapshot walk(@NotNull Path root) throws IOException {
+        long taken = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        NavigableMap<String, Entry> entries = new TreeMap<>();
+        if (Files.notExists(root)) {
+            return new FileTreeSnapshot(root, taken, entries);
+        }
+
+        // 每层文件夹的修改时间和累计的大小, 摘要
+        Deque<long[]> totals = new ArrayDeque<>();
+        Path start = Files.isSymbolicLink(root) ? root.toRealPath() : root;
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                totals.push(new long[]{attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), 0, 0});
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                if (attributes.isSymbolicLink()) {
+                    try {
+                        attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    } catch (NoSuchFileException e) {
+                        return FileVisitResult.CONTINUE; // 失效的链接
+                    }
+                }
+                if (!attributes.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String relativePath = BuildManifest.relativize(start, file);
+                long lastModified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+                long digest = digest(relativePath, attributes.size(), lastModified);
+                entries.put(relativePath, new Entry(false, attributes.size(), lastModified, digest));
+                long[] total = totals.element();
+                total[1] += attributes.size();
+                total[2] += digest;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exception) throws IOException {
+                if (exception != null) {
+                    throw exception;
+                }
+                long[] total = totals.pop();
+                String relativePath = BuildManifest.relativize(start, dir);
+                long digest = total[2] + digest(relativePath, -1, total[0]);
+                entries.put(relativePath, new Entry(true, total[1], total[0], digest));
+                if (!totals.isEmpty()) {
+                    long[] parent = totals.element();
+                    parent[1] += total[1];
+                    parent[2] += digest;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return new FileTreeSnapshot(root, taken, entries);
+    }
+
+    // 与顺序无关地相加, 每个条目先混合为 64 位
+    private static long digest(@NotNull String relativePath, long size, long lastModified) {
+        long hash = relativePath.hashCode();
+        hash = hash * 0x9E3779B97F4A7C15L + size;
+        hash = hash * 0x9E3779B97F4A7C15L + lastModified;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * 读取保存的快照
+     *
+     * @param path 快照文件
+     * @param root 快照对应的文件夹
+     * @return 快照, 文件不存在或损坏时返回 null
+     */
+    public static @Nullable FileTreeSnapshot load(@NotNull Path path, @NotNull Path root) {
+        if (Files.notExists(path)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            Saved saved = GSON.fromJson(reader, Saved.class);
+            if (saved == null || saved.entries() == null) {
+                return null;
+            }
+            return new FileTreeSnapshot(root, saved.taken(), new TreeMap<>(saved.entries()));
+        } catch (IOException | JsonParseException e) {
+            logger.warn("Failed to read file tree snapshot [{}], ignoring it.", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * 写入快照, 先写临时文件再替换
+     *
+     * @param path 快照文件
+     * @throws IOException 写入失败
+     */
+    public void save(@NotNull Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp)) {
+            GSON.toJson(new Saved(taken, entries), writer);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public @NotNull Path root() {
+        return root;
+    }
+
+    public @Nullable Entry get(@NotNull String relativePath) {
+        return entries.get(relativePath);
+    }
+
+    public @NotNull Path resolve(@NotNull String relativePath) {
+        return relativePath.isEmpty() ? root : root.resolve(relativePath);
+    }
+
+    /**
+     * @return 所有文件, 按相对路径排序
+     */
+    public @NotNull List<Path> files() {
+        return files(null);
+    }
+
+    /**
+     * @param suffixes 只返回名称匹配这些后缀的文件, 为 null 时返回全部
+     * @return 文件, 按相对路径排序
+     */
+    public @NotNull List<Path> files(@Nullable List<String> suffixes) {
+        List<Path> files = new ArrayList<>();
+        entries.forEach((relativePath, entry) -> {
+            if (!entry.directory() && (suffixes == null || matchesSuffix(fileName(relativePath), suffixes))) {
+                files.add(root.resolve(relativePath));
+            }
+        });
+        return files;
+    }
+
+    /**
+     * @return 所有文件夹 (包括根), 父文件夹在前
+     */
+    public @NotNull List<Path> directories() {
+        List<Path> directories = new ArrayList<>();
+        entries.forEach((relativePath, entry) -> {
+            if (entry.directory()) {
+                directories.add(resolve(relativePath));
+            }
+        });
+        return directories;
+    }
+
+    /**
+     * 与上次快照相比没有变化的文件, 摘要相同的文件夹整个子树直接算作没有变化
+     *
+     * @param previous 上次的快照, 为 null 时返回空集合
+     * @return 相对路径
+     */
+    public @NotNull Set<String> unchangedFiles(@Nullable FileTreeSnapshot previous) {
+        Set<String> unchanged = new HashSet<>();
+        if (previous == null) {
+            return unchanged;
+        }
+
+        String skipPrefix = null; // 没有变化的文件夹, 其中的文件不再逐个比较
+        for (Map.Entry<String, Entry> current : entries.entrySet()) {
+            String relativePath = current.getKey();
+            Entry entry = current.getValue();
+            if (skipPrefix != null && relativePath.startsWith(skipPrefix)) {
+                if (!entry.directory() && !isRacy(entry, previous)) {
+                    unchanged.add(relativePath);
+                }
+                continue;
+            }
+            skipPrefix = null;
+
+            if (!entry.equals(previous.get(relativePath)) || !entry.directory() && isRacy(entry, previous)) {
+                continue;
+            }
+            if (entry.directory()) {
+                skipPrefix = relativePath.isEmpty() ? "" : relativePath + "/";
+            } else {
+                unchanged.add(relativePath);
+            }
+        }
+        return unchanged;
+    }
+
+    // 上次快照时刚被修改的文件, 之后很快的再次修改可能不改变修改时间
+    private static boolean isRacy(@NotNull Entry entry, @NotNull FileTreeSnapshot previous) {
+        return entry.lastModified() >= previous.taken - RACY_NANOS;
+    }
+
+    private static @NotNull String fileName(@NotNull String relativePath) {
+        return relativePath.substring(relativePath.lastIndexOf('/') + 1);
+    }
+}
@@ -0,0 +1,345 @@
+package fun.xiantiao.mcpacker.utils;
+
+import fun.xiantiao.mcpacker.records.BuildSettings;
+import fun.xiantiao.mcpacker.records.ManifestEntry;
+import fun.xiantiao.mcpacker.records.PlaceholderToken;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+import static fun.xiantiao.mcpacker.utils.Tool.*;
+
+/**
+ * 增量构建
+ * <p>
+ * 根据清单只重新复制/替换源文件或用到的 papi 值发生变化的文件, 并删除源文件已不存在的输出
+ */
+public class IncrementalBuilder {
+
+    private static final Logger logger = getLogger();
+
+    // default 的文件夹快照, 保存在清单旁边
+    private static final String SNAPSHOT_NAME = ".mcp.build.snapshot.json";
+
+    // 上一次完整增量构建写入的清单和快照, 守护进程中文件没有变化时不再重新读取
+    private static volatile Saved<BuildManifest> savedManifest;
+    private static volatile Saved<FileTreeSnapshot> savedSnapshot;
+
+    private record Saved<T>(Path path, FileTime modified, long size, T value) {
+        static <T> @NotNull Saved<T> of(@NotNull Path path, @NotNull T value) throws IOException {
+            return new Saved<>(path, Files.getLastModifiedTime(path), Files.size(path), value);
+        }
+
+        @Nullable T get(@NotNull Path path) throws IOException {
+            if (!this.path.equals(path) || Files.notExists(path)) {
+                return null;
+            }
+            return Files.getLastModifiedTime(path).equals(modified) && Files.size(path) == size ? value : null;
+        }
+    }
+
+    private final Path source;
+    private final Path target;
+    private final Path manifestPath;
+    private final Path indexPath;
+    private final Path snapshotPath;
+    private final BuildSettings buildSettings;
+    private final PlaceholdersUtils placeholdersUtils;
+    private final PlaceholderRenderer renderer;
+
+    private final AtomicInteger updated = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+    // 每次构建重新创建, 硬链接退回复制只影响这一次
+    private volatile Materializer materializer;
+
+    public IncrementalBuilder(@NotNull Path source, @NotNull Path target, @NotNull Path manifestPath, @NotNull Path indexPath,
+                              @NotNull BuildSettings buildSettings, @NotNull PlaceholdersUtils placeholdersUtils) {
+        this.source = source;
+        this.target = target;
+        this.manifestPath = manifestPath;
+        this.indexPath = indexPath;
+        this.snapshotPath = manifestPath.resolveSibling(SNAPSHOT_NAME);
+        this.buildSettings = buildSettings;
+        this.placeholdersUtils = placeholdersUtils;
+        this.renderer = new PlaceholderRenderer(placeholdersUtils);
+    }
+
+    public void build() throws IOException {
+        build(null);
+    }
+
+    /**
+     * 完整的增量构建: 检查所有源文件
+     *
+     * @param stage 记录到的构建阶段, 可以为 null
+     * @throws IOException 失败
+     */
+    public void build(@Nullable BuildMetrics.Stage stage) throws IOException {
+        build(stage, FileTreeSnapshot.walk(source));
+    }
+
+    /**
+     * 完整的增量构建, 使用已有的 default 快照
+     * <p>
+     * 大小和修改时间与上次构建时相同的源文件沿用清单中的摘要, 不再读取内容
+     *
+     * @param stage      记录到的构建阶段, 可以为 null
+     * @param sourceTree default 的快照
+     * @throws IOException 失败
+     */
+    public void build(@Nullable BuildMetrics.Stage stage, @NotNull FileTreeSnapshot sourceTree) throws IOException {
+        BuildManifest previous = Files.isDirectory(target) ? loadManifest() : null;
+        if (previous == null) {
+            logger.info("No build manifest found, doing a full build.");
+            deleteFolder(target);
+            previous = new BuildManifest();
+        }
+        // 索引缺失时, 没有记录的替换文件会重新处理
+        PlaceholderIndex previousIndex = PlaceholderIndex.load(indexPath);
+        PlaceholderIndex index = previousIndex == null || previous.paths().isEmpty() ? new PlaceholderIndex() : previousIndex;
+        // 构建中断时清单会缺失, 下次自动全量构建
+        savedManifest = null;
+        Files.deleteIfExists(manifestPath);
+        updated.set(0);
+        unchanged.set(0);
+        materializer = new Materializer(buildSettings.materialization());
+
+        BuildManifest current = new BuildManifest();
+        for (Path directory : sourceTree.directories()) {
+            Files.createDirectories(target.resolve(source.relativize(directory).toString()));
+        }
+        Set<String> unchangedSources = sourceTree.unchangedFiles(loadSnapshot());
+
+        BuildManifest finalPrevious = previous;
+        ParallelExecutor.forEach(sourceTree.files(), buildSettings.threads(), path -> update(path, finalPrevious, current, index, stage,
+                unchangedSources.contains(BuildManifest.relativize(source, path))));
+
+        int removed = 0;
+        for (String relativePath : previous.paths()) {
+            if (current.get(relativePath) == null && Files.deleteIfExists(target.resolve(relativePath))) {
+                logger.debug("Deleted: {}", target.resolve(relativePath));
+                removed++;
+            }
+        }
+        deleteRemovedDirectories();
+
+        current.save(manifestPath);
+        savedManifest = Saved.of(manifestPath, current);
+        sourceTree.save(snapshotPath);
+        savedSnapshot = Saved.of(snapshotPath, sourceTree);
+        index.retain(current.paths());
+        List<String> unused = index.save(indexPath, placeholdersUtils.keys());
+        logger.info("Incremental build finished: {} updated, {} unchanged, {} removed.", updated.get(), unchanged.get(), removed);
+        if (!unused.isEmpty()) {
+            logger.warn("{} placeholders are not used by any file: {}", unused.size(), unused);
+        }
+    }
+
+    // 只读使用, 文件变化后 (如 --watch 更新了清单) 重新读取
+    private @Nullable BuildManifest loadManifest() throws IOException {
+        Saved<BuildManifest> saved = savedManifest;
+        BuildManifest manifest = saved == null ? null : saved.get(manifestPath);
+        return manifest != null ? manifest : BuildManifest.load(manifestPath);
+    }
+
+    private @Nullable FileTreeSnapshot loadSnapshot() throws IOException {
+        Saved<FileTreeSnapshot> saved = savedSnapshot;
+        FileTreeSnapshot snapshot = saved == null ? null : saved.get(snapshotPath);
+        // 快照记录的是 default 的文件, 根目录不同时不能沿用
+        if (snapshot != null && snapshot.root().equals(source)) {
+            return snapshot;
+        }
+        return FileTreeSnapshot.load(snapshotPath, source);
+    }
+
+    /**
+     * 只处理指定的源文件或文件夹, 已不存在的路径删除对应输出; 没有清单时执行完整的增量构建
+     *
+     * @param sources default 中发生变化的路径
+     * @throws IOException 失败
+     */
+    public void update(@NotNull Collection<Path> sources) throws IOException {
+        BuildManifest manifest = BuildManifest.load(manifestPath);
+        PlaceholderIndex index = PlaceholderIndex.load(indexPath);
+        if (manifest == null || index == null || Files.notExists(target)) {
+            build();
+            return;
+        }
+        update(manifest, index, sources);
+    }
+
+    private void update(@NotNull BuildManifest manifest, @NotNull PlaceholderIndex index,
+                        @NotNull Collection<Path> sources) throws IOException {
+        Files.deleteIfExists(manifestPath);
+        updated.set(0);
+        unchanged.set(0);
+        materializer = new Materializer(buildSettings.materialization());
+
+        List<Path> files = new ArrayList<>();
+        int removed = 0;
+        for (Path path : sources) {
+            String relativePath = BuildManifest.relativize(source, path);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> stream = Files.walk(path)) {
+                    for (Path child : (Iterable<Path>) stream::iterator) {
+                        if (Files.isDirectory(child)) {
+                            Files.createDirectories(target.resolve(source.relativize(child)));
+                        } else {
+                            files.add(child);
+                        }
+                    }
+                }
+            } else if (Files.isRegularFile(path)) {
+                Files.createDirectories(target.resolve(relativePath).getParent());
+                files.add(path);
+            } else {
+                // 文件或整个文件夹被删除
+                for (String entry : new ArrayList<>(manifest.paths())) {
+                    if (entry.equals(relativePath) || entry.startsWith(relativePath + "/")) {
+                        manifest.remove(entry);
+                        index.remove(entry);
+                        removed++;
+                    }
+                }
+                Path output = target.resolve(relativePath);
+                if (Files.isDirectory(output)) {
+                    deleteFolder(output);
+                } else if (Files.deleteIfExists(output)) {
+                    logger.debug("Deleted: {}", output);
+                }
+            }
+        }
+
+        try {
+            ParallelExecutor.forEach(files, buildSettings.threads(), path -> update(path, manifest, manifest, index, null, false));
+        } finally {
+            // 失败的文件保留旧的记录, 下次会重新处理
+            manifest.save(manifestPath);
+            index.save(indexPath, placeholdersUtils.keys());
+        }
+        logger.info("Updated {} files, {} unchanged, {} removed.", updated.get(), unchanged.get(), removed);
+    }
+
+    /**
+     * 只重新替换用到的 papi 值发生变化的文件, 用于设置修改后
+     *
+     * @throws IOException 失败
+     */
+    public void refresh() throws IOException {
+        BuildManifest manifest = BuildManifest.load(manifestPath);
+        PlaceholderIndex index = PlaceholderIndex.load(indexPath);
+        if (manifest == null || index == null || Files.notExists(target)) {
+            build();
+            return;
+        }
+
+        List<Path> stale = new ArrayList<>();
+        for (String relativePath : manifest.paths()) {
+            ManifestEntry entry = manifest.get(relativePath);
+            if (entry != null && entry.placeholders() != null && !isPlaceholdersUnchanged(entry)) {
+                stale.add(source.resolve(relativePath));
+            }
+        }
+        logger.info("{} files use changed placeholders.", stale.size());
+        update(manifest, index, stale);
+    }
+
+    /**
+     * @param sourceUnchanged 源文件与上次构建时的快照相同, 沿用清单中的摘要
+     */
+    private void update(@NotNull Path path, @NotNull BuildManifest previous, @NotNull BuildManifest current,
+                        @NotNull PlaceholderIndex index, @Nullable BuildMetrics.Stage stage, boolean sourceUnchanged) throws IOException {
+        long start = System.nanoTime();
+        String relativePath = BuildManifest.relativize(source, path);
+        Path output = target.resolve(relativePath);
+        boolean templated = matchesSuffix(path.getFileName().toString(), buildSettings.suffixes());
+
+        ManifestEntry entry = previous.get(relativePath);
+        boolean hashed = !sourceUnchanged || entry == null;
+        String hash = hashed ? hashFile(path) : entry.hash();
+        if (entry != null && entry.hash().equals(hash) && Files.exists(output)
+                && (templated ? isPlaceholdersUnchanged(entry) && index.contains(relativePath) : entry.placeholders() == null)) {
+            current.put(relativePath, entry);
+            unchanged.incrementAndGet();
+            if (stage != null) {
+                stage.file(output, System.nanoTime() - start, hashed ? Files.size(path) : 0, 0, 0);
+            }
+            return;
+        }
+
+        Map<String, String> placeholders = null;
+        boolean written = true;
+        int substitutions = 0;
+        if (templated) {
+            logger.debug("placeholder {}", output);
+            List<PlaceholderToken> tokens = new ArrayList<>();
+            substitutions = renderer.renderFile(path, output, tokens, buildSettings.streamingThreshold());
+
+            placeholders = new TreeMap<>();
+            for (PlaceholderToken token : tokens) {
+                placeholders.computeIfAbsent(token.placeholder().text(), placeholdersUtils::getRaw);
+            }
+            index.put(relativePath, tokens);
+        } else {
+            written = materializer.materialize(path, output);
+            index.remove(relativePath);
+        }
+
+        current.put(relativePath, new ManifestEntry(hash, placeholders));
+        updated.incrementAndGet();
+        if (stage != null) {
+            // 摘要读取一次 (沿用时不读取), 复制/替换再读取一次 (硬链接不读取)
+            long size = Files.size(path);
+            stage.file(output, System.nanoTime() - start, (hashed ? size : 0) + (written ? size : 0),
+                    written ? Files.size(output) : 0, substitutions);
+        }
+    }
+
+    // 文件用到的 papi 值是否都没有变化
+    private boolean isPlaceholdersUnchanged(@NotNull ManifestEntry entry) {
+        if (entry.placeholders() == null) {
+            return false;
+        }
+        for (Map.Entry<String, String> placeholder : entry.placeholders().entrySet()) {
+            try {
+                if (!placeholdersUtils.getRaw(placeholder.getKey()).equals(placeholder.getValue())) {
+                    return false;
+                }
+            } catch (IllegalArgumentException e) {
+                return false; // key 被删除, 重新替换时会报错
+            }
+        }
+        return true;
+    }
+
+    // 删除源中已不存在的空文件夹
+    private void deleteRemovedDirectories() throws IOException {
+        List<Path> directories;
+        try (Stream<Path> stream = Files.walk(target)) {
+            directories = stream.filter(Files::isDirectory)
+                    .sorted(Comparator.reverseOrder())
+                    .toList();
+        }
+        for (Path directory : directories) {
+            if (directory.equals(target) || Files.exists(source.resolve(target.relativize(directory)))) {
+                continue;
+            }
+            try (Stream<Path> children = Files.list(directory)) {
+                if (children.findAny().isPresent()) {
+                    continue;
+                }
+            }
+            Files.delete(directory);
+            logger.debug("Deleted: {}", directory);
+        }
+    }
+}
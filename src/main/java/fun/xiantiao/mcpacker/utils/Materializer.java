@@ -0,0 +1,90 @@
+package fun.xiantiao.mcpacker.utils;
+
+import fun.xiantiao.mcpacker.enums.MaterializationStrategy;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+
+/**
+ * 按策略把不需要替换 papi 的文件放到目标位置
+ * <p>
+ * 每次构建使用一个新的对象: 硬链接跨分区或文件系统不支持时, 只在这一次构建中退回复制
+ */
+public class Materializer {
+
+    private static final Logger logger = getLogger();
+
+    private final MaterializationStrategy strategy;
+    private volatile boolean hardLinkUnsupported = false;
+
+    public Materializer(@NotNull MaterializationStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * 放置单个文件, 目标已存在时先删除 (避免写穿硬链接)
+     *
+     * @param source      源文件
+     * @param destination 目标文件
+     * @return 是否写入了文件内容, 创建硬链接时为 false
+     * @throws IOException 如果发生 I/O 错误
+     */
+    public boolean materialize(@NotNull Path source, @NotNull Path destination) throws IOException {
+        Files.deleteIfExists(destination);
+
+        if (strategy == MaterializationStrategy.HardLink && !hardLinkUnsupported) {
+            try {
+                Files.createLink(destination, source);
+                logger.debug("linked {} to {}", source, destination);
+                return false;
+            } catch (UnsupportedOperationException | IOException e) {
+                // 只有跨分区或文件系统不支持时退回复制, 其他错误 (源文件不存在, 权限, 链接数上限等) 照常失败
+                if (e instanceof IOException exception && !isLinkUnsupported(exception)) {
+                    throw exception;
+                }
+                hardLinkUnsupported = true;
+                logger.warn("Hard links are not supported for {}, falling back to copy: {}", destination, e.toString());
+            }
+        }
+
+        if (strategy == MaterializationStrategy.Transfer) {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(destination, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    long transferred = in.transferTo(position, size - position, out);
+                    if (transferred <= 0) {
+                        // 复制期间源文件被截断 (如 --watch 时编辑器正在保存), 不再等待
+                        throw new IOException("File was truncated while copying: " + source);
+                    }
+                    position += transferred;
+                }
+            }
+            logger.debug("transferred {} to {}", source, destination);
+            return true;
+        }
+
+        Files.copy(source, destination);
+        logger.debug("copied {} to {}", source, destination);
+        return true;
+    }
+
+    // EXDEV (Linux/macOS), ERROR_NOT_SAME_DEVICE (Windows) 和 EOPNOTSUPP
+    private static boolean isLinkUnsupported(@NotNull IOException e) {
+        if (!(e instanceof FileSystemException exception) || exception.getReason() == null) {
+            return false;
+        }
+        String reason = exception.getReason().toLowerCase(Locale.ROOT);
+        return reason.contains("cross-device") || reason.contains("different disk drive") || reason.contains("not supported");
+    }
+}
@@ -0,0 +1,79 @@
+package fun.xiantiao.mcpacker.utils;
+
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+
+/**
+ * 按文件并行执行任务
+ */
+public class ParallelExecutor {
+
+    private static final Logger logger = getLogger();
+
+    @FunctionalInterface
+    public interface PathTask {
+        void accept(Path path) throws IOException;
+    }
+
+    /**
+     * 对每个文件执行任务
+     * <p>
+     * 单线程时按顺序执行, 遇到错误立即停止;
+     * 多线程时所有文件都会执行完, 再按路径顺序汇总报告失败的文件
+     *
+     * @param paths   文件列表
+     * @param threads 线程数
+     * @param task    任务
+     * @throws IOException 任意文件失败
+     */
+    public static void forEach(@NotNull List<Path> paths, int threads, @NotNull PathTask task) throws IOException {
+        if (threads <= 1 || paths.size() <= 1) {
+            for (Path path : paths) {
+                task.accept(path);
+            }
+            return;
+        }
+
+        Map<Path, Exception> failures = new ConcurrentSkipListMap<>(); // 按路径排序, 报告顺序固定
+        List<Callable<Void>> tasks = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            tasks.add(() -> {
+                try {
+                    task.accept(path);
+                } catch (Exception e) {
+                    failures.put(path, e);
+                }
+                return null;
+            });
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+
+        if (failures.isEmpty()) {
+            return;
+        }
+
+        IOException exception = new IOException("Failed to process " + failures.size() + " of " + paths.size() + " files");
+        failures.forEach((path, e) -> {
+            logger.error("Failed to process {}: {}", path, e.toString());
+            exception.addSuppressed(e);
+        });
+        throw exception;
+    }
+}
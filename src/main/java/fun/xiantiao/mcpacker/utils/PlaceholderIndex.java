@@ -0,0 +1,180 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import fun.xiantiao.mcpacker.records.PlaceholderToken;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+
+/**
+ * papi 反向索引, 记录每个 key 被哪些文件的哪些位置使用
+ * <p>
+ * 构建时由替换过程顺带记录, 不需要额外扫描; 文件路径为相对 default 的路径, 统一使用 / 分隔,
+ * 位置为 token 在文件中的字符偏移
+ */
+public class PlaceholderIndex {
+
+    private static final Logger logger = getLogger();
+    private static final Gson GSON = new Gson();
+
+    // 保存的格式: key -> 文件 -> 位置, 已索引的文件, 以及没有被任何文件使用的 key
+    private record Data(Map<String, Map<String, List<Long>>> keys, List<String> files, List<String> unused) {
+    }
+
+    // 文件 -> key -> 位置, 替换的文件没有 papi 时为空 map
+    private final Map<String, Map<String, List<Long>>> files = new ConcurrentHashMap<>();
+
+    /**
+     * 读取索引
+     *
+     * @param path 索引路径
+     * @return 索引, 文件不存在或损坏时返回 null
+     */
+    public static @Nullable PlaceholderIndex load(@NotNull Path path) {
+        if (Files.notExists(path)) {
+            return null;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            Data data = GSON.fromJson(reader, Data.class);
+            PlaceholderIndex index = new PlaceholderIndex();
+            if (data != null && data.files() != null) {
+                data.files().forEach(file -> index.files.put(file, new TreeMap<>()));
+            }
+            if (data != null && data.keys() != null) {
+                data.keys().forEach((key, files) -> files.forEach((file, offsets) ->
+                        index.files.computeIfAbsent(file, f -> new TreeMap<>()).put(key, List.copyOf(offsets))));
+            }
+            return index;
+        } catch (IOException | JsonParseException e) {
+            logger.warn("Failed to read placeholder index [{}].", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * 写入索引, 先写临时文件再替换
+     *
+     * @param path 索引路径
+     * @param keys 设置中所有的 key, 用于生成未使用 key 的报告
+     * @return 没有被任何文件使用的 key
+     * @throws IOException 写入失败
+     */
+    public @NotNull List<String> save(@NotNull Path path, @NotNull Set<String> keys) throws IOException {
+        List<String> unused = unused(keys);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp)) {
+            GSON.toJson(new Data(byKey(), new ArrayList<>(new TreeSet<>(files.keySet())), unused), writer);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return unused;
+    }
+
+    /**
+     * 记录文件内的 papi, 覆盖该文件原有的记录
+     *
+     * @param relativePath 相对路径
+     * @param tokens       文件内的 papi
+     */
+    public void put(@NotNull String relativePath, @NotNull Collection<PlaceholderToken> tokens) {
+        Map<String, List<Long>> keys = new TreeMap<>();
+        for (PlaceholderToken token : tokens) {
+            // 带引号的区间从引号开始, 记录的位置指向 $(mcp.
+            long offset = token.quoted() ? token.start() + 1 : token.start();
+            keys.computeIfAbsent(token.placeholder().text(), key -> new ArrayList<>()).add(offset);
+        }
+        files.put(relativePath, keys);
+    }
+
+    public void remove(@NotNull String relativePath) {
+        files.remove(relativePath);
+    }
+
+    /**
+     * 删除文件夹下所有文件的记录
+     *
+     * @param relativePath 文件夹的相对路径
+     */
+    public void removeDirectory(@NotNull String relativePath) {
+        files.keySet().removeIf(file -> file.startsWith(relativePath + "/"));
+    }
+
+    public boolean contains(@NotNull String relativePath) {
+        return files.containsKey(relativePath);
+    }
+
+    /**
+     * 只保留指定文件的记录
+     *
+     * @param relativePaths 仍然存在的文件
+     */
+    public void retain(@NotNull Collection<String> relativePaths) {
+        files.keySet().retainAll(relativePaths);
+    }
+
+    /**
+     * 查询使用 key 的文件
+     *
+     * @param key papi 路径
+     * @return 文件 -> 位置, 按路径排序
+     */
+    public @NotNull Map<String, List<Long>> where(@NotNull String key) {
+        Map<String, List<Long>> result = new TreeMap<>();
+        files.forEach((file, keys) -> {
+            List<Long> offsets = keys.get(key);
+            if (offsets != null) {
+                result.put(file, offsets);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @param keys 设置中所有的 key
+     * @return 没有被任何文件使用的 key, 已排序. 上级路径被使用时 (按结构替换整个对象) 也算作使用
+     */
+    public @NotNull List<String> unused(@NotNull Set<String> keys) {
+        Set<String> used = new HashSet<>();
+        for (Map<String, List<Long>> fileKeys : files.values()) {
+            used.addAll(fileKeys.keySet());
+        }
+        List<String> unused = new ArrayList<>();
+        for (String key : keys) {
+            if (!isUsed(used, key)) {
+                unused.add(key);
+            }
+        }
+        Collections.sort(unused);
+        return unused;
+    }
+
+    private static boolean isUsed(@NotNull Set<String> used, @NotNull String key) {
+        for (String path = key; ; path = path.substring(0, path.lastIndexOf('.'))) {
+            if (used.contains(path)) {
+                return true;
+            }
+            if (path.indexOf('.') < 0) {
+                return false;
+            }
+        }
+    }
+
+    private @NotNull Map<String, Map<String, List<Long>>> byKey() {
+        Map<String, Map<String, List<Long>>> keys = new TreeMap<>();
+        files.forEach((file, fileKeys) -> fileKeys.forEach((key, offsets) ->
+                keys.computeIfAbsent(key, k -> new TreeMap<>()).put(file, offsets)));
+        return keys;
+    }
+}
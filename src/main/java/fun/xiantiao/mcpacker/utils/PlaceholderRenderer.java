@@ -0,0 +1,602 @@
+package fun.xiantiao.mcpacker.utils;
+
+import fun.xiantiao.mcpacker.enums.ContentType;
+import fun.xiantiao.mcpacker.enums.PlaceholderType;
+import fun.xiantiao.mcpacker.records.Placeholder;
+import fun.xiantiao.mcpacker.records.PlaceholderToken;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Function;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+import static fun.xiantiao.mcpacker.utils.Tool.readFileToString;
+import static fun.xiantiao.mcpacker.utils.Tool.writeFileOverwrite;
+
+/**
+ * 单次扫描的 papi 替换
+ * <p>
+ * 规则与原先的两轮 replaceAll 一致:
+ * <ul>
+ *     <li>{@code $(mcp.key)} 替换为值, 但如果同一文件内出现过 {@code $(mcp.key)(number)} 则保持原样</li>
+ *     <li>{@code "$(mcp.key)(number)"} 连同引号一起替换为值, 没有引号的保持原样</li>
+ * </ul>
+ * 同一文件内同一个 key 只取一次值. 处理文件前先由 {@link ContentSniffer} 在字节上判断, 不包含 papi 的文件不解码. 开启 placeholder.structured 时 yml / json 文件交给 {@link StructuredRenderer},
+ * 不是合法的 yml / json 时退回文本替换
+ */
+public class PlaceholderRenderer {
+
+    public static final String TOKEN_PREFIX = "$(mcp.";
+    public static final String NUMBER_SUFFIX = "(number)";
+
+    private static final Logger logger = getLogger();
+
+    private final Function<String, String> values;
+    private final @Nullable StructuredRenderer structured;
+
+    public PlaceholderRenderer(@NotNull PlaceholdersUtils placeholdersUtils) {
+        this.values = placeholdersUtils::get;
+        this.structured = placeholdersUtils.structured() ? new StructuredRenderer(placeholdersUtils) : null;
+    }
+
+    /**
+     * @param values key 到值的映射, 不存在的 key 应抛出异常
+     */
+    public PlaceholderRenderer(@NotNull Function<String, String> values) {
+        this.values = values;
+        this.structured = null;
+    }
+
+    /**
+     * 替换文本内所有 papi
+     *
+     * @param input 文件内容
+     * @return 替换后的内容, 没有任何替换时返回 input 本身
+     */
+    public @NotNull String render(@NotNull String input) {
+        return render(input, null);
+    }
+
+    /**
+     * 替换文本内所有 papi, 并记录出现的 papi
+     *
+     * @param input      文件内容
+     * @param usedTokens 用于按出现顺序收集文件内的 papi, 可以为 null
+     * @return 替换后的内容, 没有任何替换时返回 input 本身
+     */
+    public @NotNull String render(@NotNull String input, @Nullable Collection<PlaceholderToken> usedTokens) {
+        List<PlaceholderToken> tokens = tokenize(input);
+        if (tokens.isEmpty()) {
+            return input;
+        }
+
+        Set<String> numberKeys = numberKeys(tokens);
+        Map<String, String> resolved = new HashMap<>(); // 本文件内已取的值
+        StringBuilder out = null;
+        int cursor = 0;
+
+        for (PlaceholderToken token : tokens) {
+            // 不替换的 key 也要取值, 不存在的 key 照常报错
+            String value = resolved.computeIfAbsent(token.placeholder().text(), this.values);
+            if (!isReplaceable(token, numberKeys)) {
+                continue;
+            }
+            if (out == null) {
+                out = new StringBuilder(input.length() + 64);
+            }
+            out.append(input, cursor, (int) token.start());
+            out.append(value);
+            cursor = (int) token.end();
+        }
+
+        if (usedTokens != null) {
+            usedTokens.addAll(tokens);
+        }
+
+        if (out == null) {
+            return input;
+        }
+        out.append(input, cursor, input.length());
+        return out.toString();
+    }
+
+    /**
+     * 替换文件内所有 papi, 大文件分块流式处理, 内存占用与文件大小无关
+     *
+     * @param source             源文件
+     * @param target             输出文件, 可以与 source 相同
+     * @param usedTokens         用于按出现顺序收集文件内的 papi, 可以为 null
+     * @param streamingThreshold 不小于该大小 (字节) 的文件流式处理
+     * @return 替换的 papi 数量
+     * @throws IOException 读写失败
+     */
+    public int renderFile(@NotNull Path source, @NotNull Path target, @Nullable Collection<PlaceholderToken> usedTokens,
+                          long streamingThreshold) throws IOException {
+        return renderFile(source, target, ContentSniffer.sniff(source), usedTokens, streamingThreshold);
+    }
+
+    /**
+     * 替换文件内所有 papi, 文件已经检测过内容类型时使用, 不再重新读取检测
+     *
+     * @param source             源文件
+     * @param target             输出文件, 可以与 source 相同
+     * @param type               source 的内容类型, 见 {@link ContentSniffer#sniff(Path)}
+     * @param usedTokens         用于按出现顺序收集文件内的 papi, 可以为 null
+     * @param streamingThreshold 不小于该大小 (字节) 的文件流式处理
+     * @return 替换的 papi 数量
+     * @throws IOException 读写失败
+     */
+    public int renderFile(@NotNull Path source, @NotNull Path target, @NotNull ContentType type,
+                          @Nullable Collection<PlaceholderToken> usedTokens, long streamingThreshold) throws IOException {
+        boolean inPlace = source.equals(target);
+
+        // 没有 papi 的文件不解码
+        if (!isTemplated(source, type)) {
+            if (!inPlace) {
+                Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return 0;
+        }
+
+        if (structured != null && StructuredRenderer.supports(source)) {
+            Integer replaced = renderStructured(source, target, usedTokens);
+            if (replaced != null) {
+                return replaced;
+            }
+        }
+
+        if (Files.size(source) < streamingThreshold) {
+            String body = readFileToString(source);
+            List<PlaceholderToken> tokens = new ArrayList<>();
+            String newBody = render(body, tokens);
+            if (usedTokens != null) {
+                usedTokens.addAll(tokens);
+            }
+            if (newBody.equals(body)) {
+                if (!inPlace) {
+                    Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return 0;
+            }
+            if (!inPlace) {
+                Files.deleteIfExists(target); // 旧输出可能是指向源文件的硬链接
+            }
+            writeFileOverwrite(target, newBody);
+            return countReplaceable(tokens);
+        }
+
+        Scan scan = scan(source, usedTokens);
+        if (!scan.changes()) {
+            if (!inPlace) {
+                Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return 0;
+        }
+
+        // 写入临时文件后替换
+        Path tmp = target.resolveSibling(target.getFileName() + ".mcp.tmp");
+        int replaced;
+        try (Writer writer = Files.newBufferedWriter(tmp)) {
+            replaced = write(source, writer, scan);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        return replaced;
+    }
+
+    /**
+     * 替换文件内所有 papi 并写入 out, 用于直接写入压缩包等不落地的输出
+     *
+     * @param source             源文件
+     * @param out                输出, 不会被关闭
+     * @param usedTokens         用于按出现顺序收集文件内的 papi, 可以为 null
+     * @param streamingThreshold 不小于该大小 (字节) 的文件流式处理
+     * @return 替换的 papi 数量
+     * @throws IOException 读写失败
+     */
+    public int renderTo(@NotNull Path source, @NotNull OutputStream out, @Nullable Collection<PlaceholderToken> usedTokens,
+                        long streamingThreshold) throws IOException {
+        return renderTo(source, out, ContentSniffer.sniff(source), usedTokens, streamingThreshold);
+    }
+
+    /**
+     * 替换文件内所有 papi 并写入 out, 文件已经检测过内容类型时使用. 没有 papi 的文件不解码, 原样复制字节
+     *
+     * @param source             源文件
+     * @param out                输出, 不会被关闭
+     * @param type               source 的内容类型, 见 {@link ContentSniffer#sniff(Path)}
+     * @param usedTokens         用于按出现顺序收集文件内的 papi, 可以为 null
+     * @param streamingThreshold 不小于该大小 (字节) 的文件流式处理
+     * @return 替换的 papi 数量
+     * @throws IOException 读写失败
+     */
+    public int renderTo(@NotNull Path source, @NotNull OutputStream out, @NotNull ContentType type,
+                        @Nullable Collection<PlaceholderToken> usedTokens, long streamingThreshold) throws IOException {
+        if (!isTemplated(source, type)) {
+            Files.copy(source, out);
+            return 0;
+        }
+
+        if (structured != null && StructuredRenderer.supports(source)) {
+            // 失败时需要从头退回文本替换, 先写到临时文件
+            Path tmp = Files.createTempFile(".mcp-structured-", ".tmp");
+            try {
+                Integer replaced = renderStructured(source, tmp, usedTokens);
+                if (replaced != null) {
+                    Files.copy(tmp, out);
+                    return replaced;
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        int replaced;
+        if (Files.size(source) < streamingThreshold) {
+            List<PlaceholderToken> tokens = new ArrayList<>();
+            writer.write(render(readFileToString(source), tokens));
+            if (usedTokens != null) {
+                usedTokens.addAll(tokens);
+            }
+            replaced = countReplaceable(tokens);
+        } else {
+            replaced = write(source, writer, scan(source, usedTokens));
+        }
+        writer.flush();
+        return replaced;
+    }
+
+    /**
+     * @param type 已检测的内容类型
+     * @return 文件是否包含 papi, 二进制文件不替换
+     */
+    private static boolean isTemplated(@NotNull Path source, @NotNull ContentType type) {
+        if (type == ContentType.Binary) {
+            logger.warn("{} looks like a binary file, placeholders are not replaced.", source);
+        }
+        return type == ContentType.Templated;
+    }
+
+    /**
+     * 按结构替换, 没有 papi 的文件原样复制, 保留原本的格式
+     *
+     * @return 替换的 papi 数量, 文件不是合法的 yml / json 时为 null
+     */
+    private @Nullable Integer renderStructured(@NotNull Path source, @NotNull Path target,
+                                               @Nullable Collection<PlaceholderToken> usedTokens) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".mcp.tmp");
+        List<PlaceholderToken> tokens = new ArrayList<>();
+        int replaced;
+        try (Writer writer = Files.newBufferedWriter(tmp)) {
+            replaced = Objects.requireNonNull(structured).render(source, writer, tokens);
+        } catch (StructuredRenderer.InvalidDocumentException e) {
+            Files.deleteIfExists(tmp);
+            logger.warn("Not a valid yml / json, replacing as text: {}", e.getMessage());
+            return null;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        if (usedTokens != null) {
+            usedTokens.addAll(tokens);
+        }
+        if (tokens.isEmpty()) {
+            Files.delete(tmp);
+            if (!source.equals(target)) {
+                Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return 0;
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        return replaced;
+    }
+
+    /**
+     * 流式处理的第一遍扫描结果
+     *
+     * @param resolved   文件内每个 key 的值
+     * @param numberKeys 以 (number) 形式出现过的 key
+     * @param changes    是否有需要替换的 papi
+     */
+    private record Scan(Map<String, String> resolved, Set<String> numberKeys, boolean changes) {
+    }
+
+    // 第一遍: 取值并找出以 (number) 形式出现的 key
+    private @NotNull Scan scan(@NotNull Path source, @Nullable Collection<PlaceholderToken> usedTokens) throws IOException {
+        Map<String, String> resolved = new HashMap<>();
+        Set<String> numberKeys = new HashSet<>();
+        Set<String> textKeys = new HashSet<>();
+        boolean[] quotedNumber = {false};
+        try (Reader reader = Files.newBufferedReader(source)) {
+            new Scanner(reader).run(new Visitor() {
+                @Override
+                public void token(@NotNull PlaceholderToken token, @NotNull CharSequence text) {
+                    String key = token.placeholder().text();
+                    resolved.computeIfAbsent(key, values);
+                    if (usedTokens != null) {
+                        usedTokens.add(token);
+                    }
+                    if (token.placeholder().type() == PlaceholderType.Number) {
+                        numberKeys.add(key);
+                        quotedNumber[0] |= token.quoted();
+                    } else {
+                        textKeys.add(key);
+                    }
+                }
+            });
+        }
+        return new Scan(resolved, numberKeys, quotedNumber[0] || !numberKeys.containsAll(textKeys));
+    }
+
+    // 第二遍: 按第一遍的结果替换并写入
+    private static int write(@NotNull Path source, @NotNull Writer writer, @NotNull Scan scan) throws IOException {
+        int[] replaced = {0};
+        try (Reader reader = Files.newBufferedReader(source)) {
+            new Scanner(reader).run(new Visitor() {
+                @Override
+                public void literal(@NotNull CharSequence text, int start, int end) throws IOException {
+                    writer.append(text, start, end);
+                }
+
+                @Override
+                public void token(@NotNull PlaceholderToken token, @NotNull CharSequence text) throws IOException {
+                    if (isReplaceable(token, scan.numberKeys())) {
+                        writer.append(scan.resolved().get(token.placeholder().text()));
+                        replaced[0]++;
+                    } else {
+                        writer.append(text);
+                    }
+                }
+            });
+        }
+        return replaced[0];
+    }
+
+    /**
+     * 扫描文本内所有 papi, 按出现顺序返回
+     *
+     * @param input 文件内容
+     * @return papi 列表
+     */
+    public static @NotNull List<PlaceholderToken> tokenize(@NotNull String input) {
+        List<PlaceholderToken> tokens = new ArrayList<>();
+        try {
+            new Scanner(input).run(new Visitor() {
+                @Override
+                public void token(@NotNull PlaceholderToken token, @NotNull CharSequence text) {
+                    tokens.add(token);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // 不会发生
+        }
+        return tokens;
+    }
+
+    /**
+     * 流式扫描整个输入, 返回缓冲区中同时保留的最多字符数, 用于检查内存占用与文件大小无关
+     *
+     * @param reader 输入
+     * @return 最多保留的字符数
+     * @throws IOException 读取失败
+     */
+    static int maxBuffered(@NotNull Reader reader) throws IOException {
+        Scanner scanner = new Scanner(reader);
+        scanner.run(new Visitor() {
+            @Override
+            public void token(@NotNull PlaceholderToken token, @NotNull CharSequence text) {
+            }
+        });
+        return scanner.maxBuffered;
+    }
+
+    private interface Visitor {
+        /**
+         * 两个 token 之间的普通文本 text[start, end)
+         */
+        default void literal(@NotNull CharSequence text, int start, int end) throws IOException {
+        }
+
+        /**
+         * @param token papi, 位置为整个文件中的位置
+         * @param text  token 在文件中的原文
+         */
+        void token(@NotNull PlaceholderToken token, @NotNull CharSequence text) throws IOException;
+    }
+
+    /**
+     * 扫描 papi, 内容可以是完整的字符串, 也可以从 Reader 分块读取
+     * <p>
+     * 分块读取时只保留可能属于未完整 token 的尾部, 超过 {@link #MAX_NAME_LENGTH} 仍未闭合的 $(mcp. 视为普通文本
+     */
+    private static final class Scanner {
+
+        private static final int CHUNK_SIZE = 64 * 1024;
+        private static final int MAX_NAME_LENGTH = 4096;
+
+        private final @Nullable Reader reader;
+        private final CharSequence text;
+        private final char[] chunk;
+        private boolean eof;
+
+        private int from = 0;   // 下一次查找 token 的位置
+        private int pos = 0;    // 已交给 visitor 的位置, 之前的字符不能再作为引号被 token 使用
+        private long offset = 0; // 已丢弃的字符数
+        private int maxBuffered = 0; // 缓冲区中同时保留的最多字符数
+
+        Scanner(@NotNull String input) {
+            this.reader = null;
+            this.text = input;
+            this.chunk = null;
+            this.eof = true;
+        }
+
+        Scanner(@NotNull Reader reader) {
+            this.reader = reader;
+            this.text = new StringBuilder(CHUNK_SIZE * 2);
+            this.chunk = new char[CHUNK_SIZE];
+            this.eof = false;
+        }
+
+        void run(@NotNull Visitor visitor) throws IOException {
+            while (true) {
+                int start = indexOf(TOKEN_PREFIX, from);
+                if (start < 0) {
+                    if (eof) {
+                        break;
+                    }
+                    // 末尾可能是不完整的 $(mcp. 及其前面的引号, 只保留这一段, 之前的内容可以丢弃
+                    emitTo(visitor, text.length() - TOKEN_PREFIX.length());
+                    from = Math.max(from, text.length() - TOKEN_PREFIX.length() - 1);
+                    fill();
+                    continue;
+                }
+
+                int nameStart = start + TOKEN_PREFIX.length();
+                int close = indexOf(")", nameStart);
+                if (close < 0) {
+                    if (eof) {
+                        break; // 后面不会再有完整的 papi
+                    }
+                    if (text.length() - nameStart > MAX_NAME_LENGTH) {
+                        from = start + 1;
+                    } else {
+                        emitTo(visitor, start - 1);
+                        fill();
+                    }
+                    continue;
+                }
+                if (close == nameStart) { // $(mcp.) 空 key
+                    from = start + 1;
+                    continue;
+                }
+
+                int end = close + 1;
+                if (!eof && text.length() <= end + NUMBER_SUFFIX.length()) {
+                    // 还不能确定后面是否为 (number)"
+                    emitTo(visitor, start - 1);
+                    fill();
+                    continue;
+                }
+
+                String name = text.subSequence(nameStart, close).toString();
+                int tokenStart = start;
+                int tokenEnd = end;
+                PlaceholderToken token;
+
+                if (startsWith(NUMBER_SUFFIX, end)) {
+                    int numberEnd = end + NUMBER_SUFFIX.length();
+                    boolean quoted = start - 1 >= pos && text.charAt(start - 1) == '"'
+                            && numberEnd < text.length() && text.charAt(numberEnd) == '"';
+                    tokenStart = quoted ? start - 1 : start;
+                    tokenEnd = quoted ? numberEnd + 1 : numberEnd;
+                    token = new PlaceholderToken(new Placeholder(name, PlaceholderType.Number),
+                            offset + tokenStart, offset + tokenEnd, quoted);
+                } else {
+                    token = new PlaceholderToken(new Placeholder(name, PlaceholderType.Text),
+                            offset + tokenStart, offset + tokenEnd, false);
+                }
+
+                emitTo(visitor, tokenStart);
+                visitor.token(token, text.subSequence(tokenStart, tokenEnd));
+                pos = tokenEnd;
+                from = tokenEnd;
+            }
+
+            emitTo(visitor, text.length());
+        }
+
+        private void emitTo(@NotNull Visitor visitor, int end) throws IOException {
+            if (end > pos) {
+                visitor.literal(text, pos, end);
+                pos = end;
+            }
+        }
+
+        // 丢弃已处理的内容并读取下一块
+        private void fill() throws IOException {
+            StringBuilder buffer = (StringBuilder) text;
+            int discard = Math.min(pos, from);
+            buffer.delete(0, discard);
+            offset += discard;
+            pos -= discard;
+            from -= discard;
+
+            int length = Objects.requireNonNull(reader).read(chunk);
+            if (length < 0) {
+                eof = true;
+            } else {
+                buffer.append(chunk, 0, length);
+                maxBuffered = Math.max(maxBuffered, buffer.length());
+            }
+        }
+
+        private int indexOf(@NotNull String str, int fromIndex) {
+            if (text instanceof String string) {
+                return string.indexOf(str, fromIndex);
+            }
+            return ((StringBuilder) text).indexOf(str, fromIndex);
+        }
+
+        private boolean startsWith(@NotNull String prefix, int index) {
+            if (text instanceof String string) {
+                return string.startsWith(prefix, index);
+            }
+            if (index + prefix.length() > text.length()) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (text.charAt(index + i) != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // 以 (number) 形式出现过的 key
+    private static @NotNull Set<String> numberKeys(@NotNull List<PlaceholderToken> tokens) {
+        Set<String> keys = new HashSet<>();
+        for (PlaceholderToken token : tokens) {
+            if (token.placeholder().type() == PlaceholderType.Number) {
+                keys.add(token.placeholder().text());
+            }
+        }
+        return keys;
+    }
+
+    private static int countReplaceable(@NotNull List<PlaceholderToken> tokens) {
+        Set<String> numberKeys = numberKeys(tokens);
+        int count = 0;
+        for (PlaceholderToken token : tokens) {
+            if (isReplaceable(token, numberKeys)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isReplaceable(@NotNull PlaceholderToken token, @NotNull Set<String> numberKeys) {
+        if (token.placeholder().type() == PlaceholderType.Number) {
+            return token.quoted();
+        }
+        return !numberKeys.contains(token.placeholder().text());
+    }
+}
@@ -2,45 +2,206 @@ package fun.xiantiao.mcpacker.utils;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import fun.xiantiao.mcpacker.records.ProviderContext;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.security.SecureRandom;
-import java.util.UUID;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
-import static fun.xiantiao.mcpacker.utils.Tool.getValueByPath;
+import static fun.xiantiao.mcpacker.Main.getLogger;
 
 public class PlaceholdersUtils {
 
-    private final JsonObject jsonObject;
+    private static final Logger logger = getLogger();
+
+    private static final String DATA_PATH = "placeholder.data";
+
+    // placeholder.data 下所有路径 (包括对象), 创建后不再修改
+    private final Map<String, JsonElement> index;
+    // placeholder.structured, yml / json 文件按结构替换
+    private final boolean structured;
+    // 变量的上下文, 见 ValueProviders
+    private final ProviderContext context;
+    // 本次构建已获取的变量, 同一个 key 的 $(random.uuid) 等变量在整个构建中保持一致
+    private final Map<String, String> resolved = new ConcurrentHashMap<>();
+    // 获取失败的变量, 只有文件用到时才报错
+    private final Map<String, RuntimeException> failures = new ConcurrentHashMap<>();
+    private volatile boolean prefetched;
 
     public PlaceholdersUtils(@NotNull JsonObject object) {
+        this(object, ProviderContext.of(object));
+    }
+
+    /**
+     * @param object  设置
+     * @param context 获取变量时的上下文, 按服务端构建时带有服务端
+     */
+    public PlaceholdersUtils(@NotNull JsonObject object, @NotNull ProviderContext context) {
         if (!object.has("placeholder")) {
             throw new IllegalArgumentException("JsonObject must contain 'placeholders'");
         }
-        this.jsonObject = object;
+
+        JsonObject placeholder = object.getAsJsonObject("placeholder");
+        Map<String, JsonElement> index = new HashMap<>();
+        if (placeholder.has("data") && placeholder.get("data").isJsonObject()) {
+            flatten(placeholder.getAsJsonObject("data"), "", index);
+        }
+        this.index = Map.copyOf(index);
+        this.structured = placeholder.has("structured") && placeholder.get("structured").getAsBoolean();
+        this.context = context;
+    }
+
+    /**
+     * @return 获取变量时的上下文
+     */
+    public @NotNull ProviderContext context() {
+        return context;
     }
 
+    /**
+     * @return yml / json 文件是否按结构替换, 见 {@link StructuredRenderer}
+     */
+    public boolean structured() {
+        return structured;
+    }
+
+    /**
+     * @return placeholder.data 下所有可以在文件中使用的 key (值不是对象的路径)
+     */
+    public @NotNull Set<String> keys() {
+        Set<String> keys = new HashSet<>();
+        index.forEach((path, element) -> {
+            if (!element.isJsonObject()) {
+                keys.add(path);
+            }
+        });
+        return keys;
+    }
+
+    /**
+     * @param path papi 路径
+     * @return 值, 变量在第一次用到时获取
+     * @throws IllegalArgumentException 路径不存在
+     * @throws UncheckedIOException     变量的提供者获取失败
+     * @throws IllegalStateException    变量无效等其他获取失败
+     */
     public String get(@NotNull String path) {
-        JsonElement valueByPath = getValueByPath(this.jsonObject, "placeholder.data." + path);
-        return resolveValue(valueByPath.getAsString());
+        String value = getIfResolved(path);
+        if (value != null) {
+            return value;
+        }
+        RuntimeException failure = failures.get(path);
+        String message = "Failed to resolve " + DATA_PATH + "." + path + ": " + failure.getMessage();
+        if (failure instanceof UncheckedIOException ioException) {
+            throw new UncheckedIOException(message, ioException.getCause());
+        }
+        throw new IllegalStateException(message, failure);
+    }
+
+    /**
+     * 与 {@link #get(String)} 相同, 但变量获取失败时返回 null
+     *
+     * @param path papi 路径
+     * @return 值, 获取失败时为 null
+     */
+    public @Nullable String getIfResolved(@NotNull String path) {
+        String value = resolved.get(path);
+        if (value != null) {
+            return value;
+        }
+        value = element(path).getAsString();
+        if (!ValueProviders.isVariable(value)) {
+            return value;
+        }
+        prefetch();
+        return resolved.get(path);
+    }
+
+    // 第一次用到变量时获取全部变量, 每个提供者只调用一次. 失败的提供者只记录下来,
+    // 没有被任何文件用到的变量 (如只有部分服务端使用的密钥) 不会使整个构建失败
+    private synchronized void prefetch() {
+        if (prefetched) {
+            return;
+        }
+        List<String> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        index.forEach((path, element) -> {
+            if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()
+                    && ValueProviders.isVariable(element.getAsString())) {
+                keys.add(path);
+                values.add(element.getAsString());
+            }
+        });
+        Map<Integer, RuntimeException> failed = new HashMap<>();
+        List<String> results = ValueProviders.resolve(values, context, failed);
+        for (int i = 0; i < keys.size(); i++) {
+            if (failed.containsKey(i)) {
+                failures.put(keys.get(i), failed.get(i));
+            } else {
+                resolved.put(keys.get(i), results.get(i));
+            }
+        }
+        prefetched = true;
+    }
+
+    /**
+     * 获取带类型的值, 字符串 (包括变量) 与 {@link #get(String)} 相同, 数字, 布尔, 列表和对象保持设置中的类型
+     *
+     * @param path papi 路径
+     * @return 值
+     */
+    public @NotNull JsonElement getTyped(@NotNull String path) {
+        JsonElement element = element(path);
+        if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()) {
+            return new JsonPrimitive(get(path));
+        }
+        return element;
+    }
+
+    /**
+     * 获取设置中的原始值 (JSON 形式), 不解析 $(random.uuid) 等变量
+     *
+     * @param path papi 路径
+     * @return 原始值
+     */
+    public @NotNull String getRaw(@NotNull String path) {
+        return element(path).toString();
+    }
+
+    private @NotNull JsonElement element(@NotNull String path) {
+        JsonElement element = index.get(path);
+        if (element == null) {
+            logger.error("Failed to retrieve path [{}]: not found in current.", DATA_PATH + "." + path);
+            throw new IllegalArgumentException("Invalid path: " + DATA_PATH + "." + path);
+        }
+        return element;
     }
 
-    private @NotNull String resolveValue(@NotNull String value) {
-        if ("$(velocity.secret)".equals(value)) {
-            return generateRandomString(16);
-        } else if ("$(random.uuid)".equals(value)) {
-            return UUID.randomUUID().toString();
+    // 展开为 a.b.c -> 值, 名称本身带 . 的 key 无法通过路径访问, 跳过
+    private static void flatten(@NotNull JsonObject object, @NotNull String prefix, @NotNull Map<String, JsonElement> index) {
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            if (entry.getKey().contains(".")) {
+                continue;
+            }
+            String path = prefix + entry.getKey();
+            index.put(path, entry.getValue());
+            if (entry.getValue().isJsonObject()) {
+                flatten(entry.getValue().getAsJsonObject(), path + ".", index);
+            }
         }
-        return value;
     }
 
-    public String generateRandomString(int length) {
+    public static String generateRandomString(int length) {
         if (length <= 0) {
             throw new IllegalArgumentException("Length must be positive");
         }
 
         final String characters = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
-        SecureRandom random = new SecureRandom();
+        Random random = ValueProviders.random();
         StringBuilder sb = new StringBuilder(length);
 
         for (int i = 0; i < length; i++) {
@@ -0,0 +1,77 @@
+package fun.xiantiao.mcpacker.utils;
+
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+
+/**
+ * 把逐个文件的事件汇总为计数器, 每隔一段时间输出一行进度, 代替每个文件一行的 INFO 日志
+ * <p>
+ * 不使用额外的线程: 记录事件的线程发现距上次输出超过间隔时输出, 同一时刻只有一个线程输出.
+ * 阶段在第一个间隔内完成时不输出进度, 由构建统计的汇总表给出结果
+ */
+public class ProgressReporter {
+
+    private static final Logger logger = getLogger();
+
+    private static final long DEFAULT_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+
+    private final String name;
+    private final long interval;
+    private final long start = System.nanoTime();
+    private final AtomicLong nextReport;
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private volatile boolean reported;
+
+    public ProgressReporter(@NotNull String name) {
+        this(name, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param name     输出时的名称, 一般为阶段名称
+     * @param interval 输出间隔 (纳秒)
+     */
+    public ProgressReporter(@NotNull String name, long interval) {
+        this.name = name;
+        this.interval = interval;
+        this.nextReport = new AtomicLong(start + interval);
+    }
+
+    /**
+     * 记录处理完的一个文件
+     *
+     * @param bytes 处理的字节数
+     */
+    public void add(long bytes) {
+        files.increment();
+        this.bytes.add(bytes);
+
+        long next = nextReport.get();
+        long now = System.nanoTime();
+        if (now - next >= 0 && nextReport.compareAndSet(next, now + interval)) {
+            report(now);
+        }
+    }
+
+    /**
+     * 阶段结束, 输出过进度时再输出最终的一行
+     */
+    public void finish() {
+        if (reported) {
+            report(System.nanoTime());
+        }
+    }
+
+    private void report(long now) {
+        reported = true;
+        long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(now - start));
+        long files = this.files.sum();
+        logger.info("{}: {} files, {} ({} files/s)", name, files, BuildMetrics.formatBytes(bytes.sum()), files / seconds);
+    }
+}
@@ -0,0 +1,274 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import fun.xiantiao.mcpacker.enums.PlaceholderType;
+import fun.xiantiao.mcpacker.records.PlaceholderToken;
+import fun.xiantiao.mcpacker.records.ProviderContext;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * 解析设置文件中引用其他 papi 的值
+ * <p>
+ * placeholder.data 下每个路径是图中的一个节点, 值中的 $(mcp.x) 是指向 x 的边;
+ * 按依赖顺序深度优先求值, 每个节点只求一次, 出现循环引用时报告完整的引用链
+ * <ul>
+ *     <li>值整个为 {@code $(mcp.x)(number)} 时替换为 x 的 JSON 值 (数字/布尔)</li>
+ *     <li>其余 {@code $(mcp.x)} 按文本替换, 规则与 {@link PlaceholderRenderer} 相同</li>
+ *     <li>被引用的变量 (如 $(random.uuid)) 在此批量获取一次, 引用方与被引用方得到同一个值</li>
+ * </ul>
+ */
+public class SettingsResolver {
+
+    private static final String DATA_PATH = "placeholder.data";
+
+    // placeholder.data 中可以通过路径访问的位置
+    private record Slot(JsonObject parent, String key) {
+        JsonElement get() {
+            return parent.get(key);
+        }
+
+        void set(JsonElement value) {
+            parent.add(key, value);
+        }
+    }
+
+    private final JsonObject settings;
+    private final ProviderContext context;
+    private final Map<String, String> variables = new HashMap<>(); // 预先获取的被引用变量
+    private final Map<String, Slot> slots = new LinkedHashMap<>();
+    private final Map<String, JsonElement> resolved = new HashMap<>();
+    private final Deque<String> chain = new ArrayDeque<>(); // 正在求值的路径
+
+    private SettingsResolver(@NotNull JsonObject settings, @NotNull ProviderContext context) {
+        this.settings = settings;
+        this.context = context;
+    }
+
+    /**
+     * 解析设置中所有的 $(mcp.x) 引用
+     *
+     * @param settings 设置, 不会被修改
+     * @return 解析后的设置
+     * @throws IllegalArgumentException 引用不存在或循环引用
+     */
+    public static @NotNull JsonObject resolve(@NotNull JsonObject settings) {
+        return resolve(settings, ProviderContext.of(settings));
+    }
+
+    /**
+     * @param settings 设置, 不会被修改
+     * @param context  获取变量时的上下文
+     * @return 解析后的设置
+     */
+    public static @NotNull JsonObject resolve(@NotNull JsonObject settings, @NotNull ProviderContext context) {
+        SettingsResolver resolver = new SettingsResolver(settings.deepCopy(), context);
+        return resolver.resolveAll();
+    }
+
+    private @NotNull JsonObject resolveAll() {
+        Set<JsonElement> skipped = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (settings.has("placeholder") && settings.get("placeholder").isJsonObject()) {
+            JsonObject placeholder = settings.getAsJsonObject("placeholder");
+            if (placeholder.has("data") && placeholder.get("data").isJsonObject()) {
+                JsonObject data = placeholder.getAsJsonObject("data");
+                collectSlots(data, "");
+                skipped.add(data);
+            }
+            // placeholder.servers 中的覆盖值在合并到 data 后才解析, 见 TargetBuilder
+            if (placeholder.has("servers")) {
+                skipped.add(placeholder.get("servers"));
+            }
+        }
+
+        prefetch();
+        for (String path : new ArrayList<>(slots.keySet())) {
+            resolvePath(path);
+        }
+
+        // placeholder.data 以外的值 (如 suffixes) 也允许引用
+        resolveOutside(settings, skipped);
+        return settings;
+    }
+
+    private void collectSlots(@NotNull JsonObject object, @NotNull String prefix) {
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            if (entry.getKey().contains(".")) {
+                continue;
+            }
+            String path = prefix + entry.getKey();
+            slots.put(path, new Slot(object, entry.getKey()));
+            if (entry.getValue().isJsonObject()) {
+                collectSlots(entry.getValue().getAsJsonObject(), path + ".");
+            }
+        }
+    }
+
+    // data 中字符串值引用的变量一次获取, 其余 (列表中或 data 以外的引用) 在 textOf 中单独获取
+    private void prefetch() {
+        Set<String> referenced = new LinkedHashSet<>();
+        for (Slot slot : slots.values()) {
+            JsonElement value = slot.get();
+            if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isString()) {
+                for (PlaceholderToken token : PlaceholderRenderer.tokenize(value.getAsString())) {
+                    referenced.add(token.placeholder().text());
+                }
+            }
+        }
+
+        List<String> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (String key : referenced) {
+            Slot slot = slots.get(key);
+            JsonElement value = slot == null ? null : slot.get();
+            if (value != null && value.isJsonPrimitive() && ValueProviders.isVariable(value.getAsString())) {
+                keys.add(key);
+                values.add(value.getAsString());
+            }
+        }
+        List<String> results = ValueProviders.resolve(values, context);
+        for (int i = 0; i < keys.size(); i++) {
+            variables.put(keys.get(i), results.get(i));
+        }
+    }
+
+    private @NotNull JsonElement resolvePath(@NotNull String path) {
+        JsonElement done = resolved.get(path);
+        if (done != null) {
+            return done;
+        }
+
+        if (chain.contains(path)) {
+            StringJoiner joiner = new StringJoiner(" -> ");
+            boolean inCycle = false;
+            for (String node : chain) {
+                inCycle |= node.equals(path);
+                if (inCycle) {
+                    joiner.add(node);
+                }
+            }
+            joiner.add(path);
+            throw new IllegalArgumentException("Cyclic placeholder reference: " + joiner);
+        }
+
+        Slot slot = slots.get(path);
+        if (slot == null) {
+            throw new IllegalArgumentException("Invalid path: " + DATA_PATH + "." + path);
+        }
+
+        chain.addLast(path);
+        JsonElement value;
+        try {
+            value = resolveElement(slot.get(), path);
+        } finally {
+            chain.removeLast();
+        }
+        slot.set(value);
+        resolved.put(path, value);
+        return value;
+    }
+
+    private @NotNull JsonElement resolveElement(@NotNull JsonElement element, @NotNull String path) {
+        if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()) {
+            return resolveString(element.getAsString());
+        }
+
+        if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            for (String key : new ArrayList<>(object.keySet())) {
+                if (key.contains(".")) {
+                    object.add(key, resolveElement(object.get(key), path));
+                } else {
+                    resolvePath(path + "." + key);
+                }
+            }
+            return object;
+        }
+
+        if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            for (int i = 0; i < array.size(); i++) {
+                array.set(i, resolveElement(array.get(i), path));
+            }
+            return array;
+        }
+
+        return element;
+    }
+
+    private @NotNull JsonElement resolveString(@NotNull String value) {
+        List<PlaceholderToken> tokens = PlaceholderRenderer.tokenize(value);
+        if (tokens.isEmpty()) {
+            return new JsonPrimitive(value);
+        }
+
+        // "$(mcp.x)(number)" 整个值替换为 x 的 JSON 值
+        PlaceholderToken first = tokens.get(0);
+        if (tokens.size() == 1 && first.placeholder().type() == PlaceholderType.Number
+                && first.start() == 0 && first.end() == value.length()) {
+            String text = textOf(first.placeholder().text());
+            try {
+                JsonElement parsed = JsonParser.parseString(text);
+                if (parsed.isJsonPrimitive()) {
+                    return parsed;
+                }
+            } catch (JsonParseException ignored) {
+            }
+            throw new IllegalArgumentException("Value of " + DATA_PATH + "." + first.placeholder().text()
+                    + " is not a number: " + text);
+        }
+
+        return new JsonPrimitive(new PlaceholderRenderer(this::textOf).render(value));
+    }
+
+    // 被引用 key 的文本值
+    private @NotNull String textOf(@NotNull String key) {
+        JsonElement value = resolvePath(key);
+        if (!value.isJsonPrimitive()) {
+            throw new IllegalArgumentException("Value of " + DATA_PATH + "." + key + " is not a primitive: " + value);
+        }
+
+        String text = value.getAsString();
+        String generated = variables.containsKey(key) ? variables.get(key) : ValueProviders.resolve(text, context);
+        if (!generated.equals(text)) {
+            // 变量在这里固定下来
+            JsonPrimitive primitive = new JsonPrimitive(generated);
+            slots.get(key).set(primitive);
+            resolved.put(key, primitive);
+        }
+        return generated;
+    }
+
+    private void resolveOutside(@NotNull JsonElement element, @NotNull Set<JsonElement> skipped) {
+        if (skipped.contains(element)) {
+            return;
+        }
+        if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            for (String key : new ArrayList<>(object.keySet())) {
+                JsonElement child = object.get(key);
+                if (child.isJsonPrimitive() && child.getAsJsonPrimitive().isString()) {
+                    object.add(key, resolveString(child.getAsString()));
+                } else {
+                    resolveOutside(child, skipped);
+                }
+            }
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            for (int i = 0; i < array.size(); i++) {
+                JsonElement child = array.get(i);
+                if (child.isJsonPrimitive() && child.getAsJsonPrimitive().isString()) {
+                    array.set(i, resolveString(child.getAsString()));
+                } else {
+                    resolveOutside(child, skipped);
+                }
+            }
+        }
+    }
+}
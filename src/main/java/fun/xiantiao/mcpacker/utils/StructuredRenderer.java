@@ -0,0 +1,407 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+import fun.xiantiao.mcpacker.enums.PlaceholderType;
+import fun.xiantiao.mcpacker.records.PlaceholderToken;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.emitter.Emitter;
+import org.yaml.snakeyaml.error.Mark;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.*;
+import org.yaml.snakeyaml.parser.Parser;
+import org.yaml.snakeyaml.parser.ParserImpl;
+import org.yaml.snakeyaml.reader.StreamReader;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static fun.xiantiao.mcpacker.utils.PlaceholderRenderer.TOKEN_PREFIX;
+
+/**
+ * 按结构替换 yml / json 中的 papi
+ * <p>
+ * 流式解析一次, 在节点上替换后写出一次:
+ * <ul>
+ *     <li>整个值为 {@code $(mcp.key)(number)} 时 (双引号, 单引号或不带引号) 按设置中的类型写入数字, 布尔, 列表或对象</li>
+ *     <li>值和键中的其他 papi 按文本替换, 转义由序列化处理</li>
+ * </ul>
+ * yml 保留注释, 缩进, 引号等格式会被统一; json 以两个空格缩进输出
+ */
+public class StructuredRenderer {
+
+    private static final Gson GSON = new Gson();
+    private static final Pattern JSON_LITERAL = Pattern.compile("-?(0|[1-9]\\d*)(\\.\\d+)?([eE][+-]?\\d+)?|true|false|null");
+
+    private final PlaceholdersUtils placeholdersUtils;
+
+    public StructuredRenderer(@NotNull PlaceholdersUtils placeholdersUtils) {
+        this.placeholdersUtils = placeholdersUtils;
+    }
+
+    /**
+     * 文件不是合法的 yml / json, 可以退回文本替换
+     */
+    public static class InvalidDocumentException extends IOException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        public InvalidDocumentException(@NotNull String message, @NotNull Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * @param file 文件
+     * @return 是否为可以按结构替换的 yml / json
+     */
+    public static boolean supports(@NotNull Path file) {
+        String name = file.getFileName().toString();
+        return name.endsWith(".yml") || name.endsWith(".yaml") || name.endsWith(".json");
+    }
+
+    /**
+     * 替换文件内所有 papi 并写入 writer
+     *
+     * @param source     源文件
+     * @param writer     输出, 不会被关闭
+     * @param usedTokens 用于按出现顺序收集文件内的 papi, 可以为 null
+     * @return 替换的 papi 数量
+     * @throws InvalidDocumentException 文件不是合法的 yml / json, writer 中可能已经写入了一部分
+     * @throws IOException              读写失败
+     */
+    public int render(@NotNull Path source, @NotNull Writer writer, @Nullable Collection<PlaceholderToken> usedTokens) throws IOException {
+        try (PrefixReader reader = new PrefixReader(Files.newBufferedReader(source))) {
+            Context context = new Context(reader, usedTokens);
+            if (source.getFileName().toString().endsWith(".json")) {
+                renderJson(reader, writer, context);
+            } else {
+                renderYaml(reader, writer, context);
+            }
+            return context.replaced;
+        } catch (YAMLException | MalformedJsonException | JsonParseException e) {
+            throw new InvalidDocumentException(source + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void renderYaml(@NotNull Reader reader, @NotNull Writer writer, @NotNull Context context) throws IOException {
+        LoaderOptions loaderOptions = new LoaderOptions();
+        loaderOptions.setProcessComments(true);
+        loaderOptions.setCodePointLimit(Integer.MAX_VALUE);
+        DumperOptions dumperOptions = new DumperOptions();
+        dumperOptions.setProcessComments(true);
+        dumperOptions.setSplitLines(false);
+        dumperOptions.setWidth(Integer.MAX_VALUE);
+
+        Parser parser = new ParserImpl(new StreamReader(reader), loaderOptions);
+        Emitter emitter = new Emitter(writer, dumperOptions);
+        Deque<Frame> frames = new ArrayDeque<>();
+
+        Event event;
+        while ((event = parser.getEvent()) != null) {
+            boolean key = !frames.isEmpty() && frames.peek().mapping && frames.peek().key;
+            if (event instanceof ScalarEvent scalar) {
+                emitScalar(emitter, scalar, key, context);
+                nextNode(frames);
+            } else if (event instanceof CommentEvent comment) {
+                emitter.emit(new CommentEvent(comment.getCommentType(), context.text(comment.getValue()),
+                        comment.getStartMark(), comment.getEndMark()));
+            } else {
+                emitter.emit(event);
+                if (event instanceof MappingStartEvent) {
+                    frames.push(new Frame(true));
+                } else if (event instanceof SequenceStartEvent) {
+                    frames.push(new Frame(false));
+                } else if (event instanceof CollectionEndEvent) {
+                    frames.pop();
+                    nextNode(frames);
+                } else if (event instanceof AliasEvent) {
+                    nextNode(frames);
+                }
+            }
+            if (event instanceof StreamEndEvent) {
+                break;
+            }
+        }
+    }
+
+    // 正在写入的 mapping 或 sequence, mapping 中交替为键和值
+    private static final class Frame {
+        private final boolean mapping;
+        private boolean key = true;
+
+        Frame(boolean mapping) {
+            this.mapping = mapping;
+        }
+    }
+
+    private static void nextNode(@NotNull Deque<Frame> frames) {
+        if (!frames.isEmpty() && frames.peek().mapping) {
+            frames.peek().key = !frames.peek().key;
+        }
+    }
+
+    private void emitScalar(@NotNull Emitter emitter, @NotNull ScalarEvent scalar, boolean key, @NotNull Context context) throws IOException {
+        Mark start = scalar.getStartMark();
+        Mark end = scalar.getEndMark();
+        JsonElement typed = context.typed(scalar.getValue());
+        if (typed != null && (!key || typed.isJsonPrimitive() || typed.isJsonNull())) {
+            emitTyped(emitter, scalar.getAnchor(), typed, start, end);
+            return;
+        }
+
+        String value = typed != null ? typed.toString() : context.text(scalar.getValue());
+        if (value.equals(scalar.getValue())) {
+            emitter.emit(scalar);
+            return;
+        }
+        // 替换后可能需要加引号, 没有标签的纯量加引号后仍然是字符串
+        ImplicitTuple implicit = scalar.getTag() == null ? new ImplicitTuple(true, true) : scalar.getImplicit();
+        emitter.emit(new ScalarEvent(scalar.getAnchor(), scalar.getTag(), implicit, value, start, end, scalar.getScalarStyle()));
+    }
+
+    private static void emitTyped(@NotNull Emitter emitter, @Nullable String anchor, @NotNull JsonElement element,
+                                  @Nullable Mark start, @Nullable Mark end) throws IOException {
+        if (element.isJsonArray()) {
+            emitter.emit(new SequenceStartEvent(anchor, null, true, start, end, DumperOptions.FlowStyle.BLOCK));
+            for (JsonElement child : element.getAsJsonArray()) {
+                emitTyped(emitter, null, child, start, end);
+            }
+            emitter.emit(new SequenceEndEvent(start, end));
+        } else if (element.isJsonObject()) {
+            emitter.emit(new MappingStartEvent(anchor, null, true, start, end, DumperOptions.FlowStyle.BLOCK));
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                emitter.emit(new ScalarEvent(null, null, new ImplicitTuple(true, true), entry.getKey(), start, end,
+                        DumperOptions.ScalarStyle.PLAIN));
+                emitTyped(emitter, null, entry.getValue(), start, end);
+            }
+            emitter.emit(new MappingEndEvent(start, end));
+        } else {
+            // 与文本替换的 "$(mcp.key)(number)" 相同, 值不带引号写入, 由 yml 决定类型
+            String value = element.isJsonNull() ? "null" : element.getAsString();
+            emitter.emit(new ScalarEvent(anchor, null, new ImplicitTuple(true, true), value, start, end,
+                    DumperOptions.ScalarStyle.PLAIN));
+        }
+    }
+
+    private void renderJson(@NotNull Reader reader, @NotNull Writer writer, @NotNull Context context) throws IOException {
+        JsonReader jsonReader = new JsonReader(reader);
+        jsonReader.setStrictness(Strictness.LENIENT); // 允许不带引号的 $(mcp.key)(number)
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        jsonWriter.setStrictness(Strictness.LENIENT);
+        jsonWriter.setIndent("  ");
+
+        while (true) {
+            switch (jsonReader.peek()) {
+                case BEGIN_ARRAY -> {
+                    jsonReader.beginArray();
+                    jsonWriter.beginArray();
+                }
+                case END_ARRAY -> {
+                    jsonReader.endArray();
+                    jsonWriter.endArray();
+                }
+                case BEGIN_OBJECT -> {
+                    jsonReader.beginObject();
+                    jsonWriter.beginObject();
+                }
+                case END_OBJECT -> {
+                    jsonReader.endObject();
+                    jsonWriter.endObject();
+                }
+                case NAME -> {
+                    String name = jsonReader.nextName();
+                    JsonElement typed = context.typed(name);
+                    jsonWriter.name(typed == null ? context.text(name) : typed.isJsonPrimitive() ? typed.getAsString() : typed.toString());
+                }
+                case STRING -> {
+                    String value = jsonReader.nextString();
+                    JsonElement typed = context.typed(value);
+                    if (typed != null) {
+                        writeTyped(jsonWriter, typed);
+                    } else {
+                        jsonWriter.value(context.text(value));
+                    }
+                }
+                case NUMBER -> jsonWriter.jsonValue(jsonReader.nextString()); // 保留原本的写法和精度
+                case BOOLEAN -> jsonWriter.value(jsonReader.nextBoolean());
+                case NULL -> {
+                    jsonReader.nextNull();
+                    jsonWriter.nullValue();
+                }
+                case END_DOCUMENT -> {
+                    jsonWriter.flush();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void writeTyped(@NotNull JsonWriter writer, @NotNull JsonElement element) throws IOException {
+        if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()) {
+            // 与文本替换的 "$(mcp.key)(number)" 相同, 能作为 json 字面量的字符串不带引号写入
+            String value = element.getAsString();
+            if (JSON_LITERAL.matcher(value).matches()) {
+                writer.jsonValue(value);
+            } else {
+                writer.value(value);
+            }
+            return;
+        }
+        GSON.toJson(element, writer);
+    }
+
+    /**
+     * 一个文件的替换状态
+     */
+    private final class Context {
+
+        private final PrefixReader reader;
+        private final @Nullable Collection<PlaceholderToken> usedTokens;
+        private final Map<String, JsonElement> typed = new HashMap<>(); // 本文件内已取的值
+        private int replaced = 0;
+
+        Context(@NotNull PrefixReader reader, @Nullable Collection<PlaceholderToken> usedTokens) {
+            this.reader = reader;
+            this.usedTokens = usedTokens;
+        }
+
+        /**
+         * @param value 解析后的值
+         * @return 整个值为 $(mcp.key)(number) 时为带类型的值, 否则为 null
+         */
+        @Nullable JsonElement typed(@NotNull String value) {
+            if (!value.startsWith(TOKEN_PREFIX)) {
+                return null;
+            }
+            List<PlaceholderToken> tokens = PlaceholderRenderer.tokenize(value);
+            if (tokens.size() != 1) {
+                return null;
+            }
+            PlaceholderToken token = tokens.get(0);
+            if (token.placeholder().type() != PlaceholderType.Number || token.start() != 0 || token.end() != value.length()) {
+                return null;
+            }
+            record(value, tokens);
+            replaced++;
+            return typed.computeIfAbsent(token.placeholder().text(), placeholdersUtils::getTyped);
+        }
+
+        /**
+         * 按文本替换值中的 papi
+         *
+         * @param value 解析后的值
+         * @return 替换后的值
+         */
+        @NotNull String text(@NotNull String value) {
+            if (!value.contains(TOKEN_PREFIX)) {
+                return value;
+            }
+            List<PlaceholderToken> tokens = PlaceholderRenderer.tokenize(value);
+            record(value, tokens);
+            if (tokens.isEmpty()) {
+                return value;
+            }
+
+            StringBuilder out = new StringBuilder(value.length() + 64);
+            int cursor = 0;
+            for (PlaceholderToken token : tokens) {
+                // 值内的 "$(mcp.key)(number)" 只替换引号中间的部分
+                int start = (int) (token.quoted() ? token.start() + 1 : token.start());
+                int end = (int) (token.quoted() ? token.end() - 1 : token.end());
+                out.append(value, cursor, start);
+                JsonElement element = typed.computeIfAbsent(token.placeholder().text(), placeholdersUtils::getTyped);
+                out.append(element.isJsonPrimitive() ? element.getAsString() : element.toString());
+                cursor = end;
+                replaced++;
+            }
+            out.append(value, cursor, value.length());
+            return out.toString();
+        }
+
+        // 按出现顺序对应原文中 $(mcp. 的位置, 转义写出的 $(mcp. 会使之后的位置不准确
+        private void record(@NotNull String value, @NotNull List<PlaceholderToken> tokens) {
+            if (usedTokens == null) {
+                return;
+            }
+            List<PlaceholderToken> positioned = new ArrayList<>(tokens);
+            int tokenIndex = 0;
+            int from = 0;
+            int index;
+            while ((index = value.indexOf(TOKEN_PREFIX, from)) >= 0) {
+                Long position = reader.positions.poll();
+                while (tokenIndex < tokens.size() && tokens.get(tokenIndex).end() <= index) {
+                    tokenIndex++;
+                }
+                if (position != null && tokenIndex < tokens.size()) {
+                    PlaceholderToken token = tokens.get(tokenIndex);
+                    long quote = index - token.start(); // 带引号的 Number 从引号开始
+                    if (quote == 0 || quote == 1) {
+                        long start = position - quote;
+                        positioned.set(tokenIndex, new PlaceholderToken(token.placeholder(), start,
+                                start + token.end() - token.start(), token.quoted()));
+                        tokenIndex++;
+                    }
+                }
+                from = index + 1;
+            }
+            usedTokens.addAll(positioned);
+        }
+    }
+
+    /**
+     * 读取时记录原文中每个 $(mcp. 的位置, 解析器预读的部分也会被记录, 按顺序取用
+     */
+    private static final class PrefixReader extends FilterReader {
+
+        private final Deque<Long> positions = new ArrayDeque<>();
+        private long offset = 0;
+        private int matched = 0; // 已匹配的 TOKEN_PREFIX 长度, 可以跨越两次读取
+
+        PrefixReader(@NotNull Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = in.read();
+            if (c >= 0) {
+                accept((char) c);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char @NotNull [] buffer, int off, int length) throws IOException {
+            int count = in.read(buffer, off, length);
+            for (int i = 0; i < count; i++) {
+                accept(buffer[off + i]);
+            }
+            return count;
+        }
+
+        private void accept(char c) {
+            if (c == TOKEN_PREFIX.charAt(matched)) {
+                matched++;
+            } else {
+                matched = c == TOKEN_PREFIX.charAt(0) ? 1 : 0;
+            }
+            offset++;
+            if (matched == TOKEN_PREFIX.length()) {
+                positions.add(offset - TOKEN_PREFIX.length());
+                matched = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package fun.xiantiao.mcpacker.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 写入 tar.gz 文件
+ * <p>
+ * 只写普通文件和文件夹 (ustar 格式), 名称超过 100 字节, 不是 ASCII 或大小超过 8GB 时加上 PAX 扩展头
+ */
+public class TarArchiveWriter implements Closeable {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final long MAX_OCTAL_SIZE = 077777777777L; // 11 位八进制
+
+    private final OutputStream out;
+    private final byte[] copyBuffer = new byte[256 * 1024];
+    private int paxCount = 0;
+
+    public TarArchiveWriter(@NotNull Path file) throws IOException {
+        this.out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1024 * 1024), 64 * 1024);
+    }
+
+    /**
+     * 写入一个文件
+     *
+     * @param name         条目名称
+     * @param size         大小, 从 data 中读取这么多字节
+     * @param lastModified 修改时间 (毫秒)
+     * @param mode         unix 权限位, 见 {@link Tool#unixMode}
+     * @param data         内容
+     * @throws IOException 写入失败或 data 长度不足
+     */
+    public void addEntry(@NotNull String name, long size, long lastModified, int mode, @NotNull InputStream data) throws IOException {
+        writeHeaders(name, size, lastModified, mode, (byte) '0');
+
+        long remaining = size;
+        while (remaining > 0) {
+            int length = data.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, remaining));
+            if (length < 0) {
+                throw new IOException("Unexpected end of data for tar entry: " + name);
+            }
+            out.write(copyBuffer, 0, length);
+            remaining -= length;
+        }
+        pad(size);
+    }
+
+    /**
+     * 写入一个文件夹, 解压时空文件夹也会被创建
+     *
+     * @param name         条目名称, 没有以 / 结尾时补上
+     * @param lastModified 修改时间 (毫秒)
+     * @param mode         unix 权限位
+     * @throws IOException 写入失败
+     */
+    public void addDirectory(@NotNull String name, long lastModified, int mode) throws IOException {
+        writeHeaders(name.endsWith("/") ? name : name + "/", 0, lastModified, mode, (byte) '5');
+    }
+
+    // 需要时先写 PAX 扩展头
+    private void writeHeaders(@NotNull String name, long size, long lastModified, int mode, byte type) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean longName = nameBytes.length > 100 || !isAscii(nameBytes);
+        boolean bigSize = size > MAX_OCTAL_SIZE;
+
+        if (longName || bigSize) {
+            StringBuilder records = new StringBuilder();
+            if (longName) {
+                records.append(paxRecord("path", name));
+            }
+            if (bigSize) {
+                records.append(paxRecord("size", Long.toString(size)));
+            }
+            byte[] pax = records.toString().getBytes(StandardCharsets.UTF_8);
+            writeHeader(("PaxHeaders/" + (paxCount++)).getBytes(StandardCharsets.US_ASCII), pax.length, lastModified, 0644, (byte) 'x');
+            out.write(pax);
+            pad(pax.length);
+        }
+
+        byte[] headerName = longName ? Arrays.copyOf(asciiName(name), Math.min(100, asciiName(name).length)) : nameBytes;
+        writeHeader(headerName, bigSize ? 0 : size, lastModified, mode, type);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (out) {
+            out.write(new byte[BLOCK_SIZE * 2]);
+        }
+    }
+
+    private void writeHeader(byte @NotNull [] name, long size, long lastModified, int mode, byte type) throws IOException {
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+        octal(header, 100, 8, mode & 07777);            // mode
+        octal(header, 108, 8, 0);                       // uid
+        octal(header, 116, 8, 0);                       // gid
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, Math.max(0, lastModified / 1000));
+        Arrays.fill(header, 148, 156, (byte) ' ');     // 计算校验和时按空格计算
+        header[156] = type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        octal(header, 148, 7, checksum);
+        header[155] = ' ';
+        out.write(header);
+    }
+
+    // 以 0 结尾的八进制数字
+    private static void octal(byte @NotNull [] header, int offset, int length, long value) {
+        String text = Long.toOctalString(value);
+        int digits = length - 1;
+        for (int i = 0; i < digits; i++) {
+            int index = text.length() - digits + i;
+            header[offset + i] = (byte) (index >= 0 ? text.charAt(index) : '0');
+        }
+        header[offset + digits] = 0;
+    }
+
+    private void pad(long size) throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if (remainder != 0) {
+            out.write(new byte[BLOCK_SIZE - remainder]);
+        }
+    }
+
+    // "长度 key=value\n", 长度包含自身
+    private static @NotNull String paxRecord(@NotNull String key, @NotNull String value) {
+        int length = key.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int total = length + Integer.toString(length).length();
+        if (Integer.toString(total).length() != Integer.toString(length).length()) {
+            total++;
+        }
+        return total + " " + key + "=" + value + "\n";
+    }
+
+    private static boolean isAscii(byte @NotNull [] bytes) {
+        for (byte b : bytes) {
+            if (b < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 不支持 PAX 的程序看到的名称
+    private static byte @NotNull [] asciiName(@NotNull String name) {
+        return name.replaceAll("[^\\x20-\\x7E]", "_").getBytes(StandardCharsets.US_ASCII);
+    }
+}
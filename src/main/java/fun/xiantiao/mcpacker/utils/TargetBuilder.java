@@ -0,0 +1,285 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import fun.xiantiao.mcpacker.enums.ContentType;
+import fun.xiantiao.mcpacker.records.BuildSettings;
+import fun.xiantiao.mcpacker.records.PlaceholderToken;
+import fun.xiantiao.mcpacker.records.ProviderContext;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+import static fun.xiantiao.mcpacker.utils.Tool.*;
+
+/**
+ * 按服务端构建目标
+ * <p>
+ * default/files 是所有服务端共享的一层, 只替换一次, 放在 built/files;
+ * built/servers/&lt;名称&gt; 是可以直接部署的完整服务端: 共享层的文件按 build.materialization 放到这里, 服务端自己的同名文件覆盖共享层.
+ * placeholder.servers.&lt;名称&gt; 下的值覆盖 placeholder.data 中同一路径的值, 只作用于该服务端;
+ * 共享层的文件用到的值被覆盖时为该服务端单独替换, 否则直接链接
+ */
+public class TargetBuilder {
+
+    private static final Logger logger = getLogger();
+
+    private final Path source;
+    private final Path target;
+    private final Path indexPath;
+    private final BuildSettings buildSettings;
+    private final JsonObject rawSettings;
+    private final PlaceholdersUtils placeholdersUtils;
+
+    /**
+     * @param rawSettings       未解析引用的设置, 用于和服务端的覆盖值合并后重新解析
+     * @param placeholdersUtils 全局的 papi
+     */
+    public TargetBuilder(@NotNull Path source, @NotNull Path target, @NotNull Path indexPath, @NotNull BuildSettings buildSettings,
+                         @NotNull JsonObject rawSettings, @NotNull PlaceholdersUtils placeholdersUtils) {
+        this.source = source;
+        this.target = target;
+        this.indexPath = indexPath;
+        this.buildSettings = buildSettings;
+        this.rawSettings = rawSettings;
+        this.placeholdersUtils = placeholdersUtils;
+    }
+
+    /**
+     * 构建共享层和服务端
+     *
+     * @param selected 只构建这些服务端, 为 null 时构建全部并清空 built
+     * @param metrics  记录到的构建统计, 可以为 null
+     * @throws IOException 失败
+     */
+    public void build(@Nullable Collection<String> selected, @Nullable BuildMetrics metrics) throws IOException {
+        Path sharedSource = source.resolve("files");
+        Path sharedTarget = target.resolve("files");
+        Path serversSource = source.resolve("servers");
+        Path serversTarget = target.resolve("servers");
+
+        List<String> servers = servers(serversSource, selected);
+        Map<String, PlaceholdersUtils> scopes = new HashMap<>();
+        for (String server : servers) {
+            scopes.put(server, scope(server));
+        }
+
+        PlaceholderIndex index = selected == null ? null : PlaceholderIndex.load(indexPath);
+        if (index == null) {
+            index = new PlaceholderIndex();
+        }
+        if (selected == null) {
+            deleteFolder(target);
+        } else {
+            deleteFolder(sharedTarget);
+            index.removeDirectory("files");
+            for (String server : servers) {
+                deleteFolder(serversTarget.resolve(server));
+                index.removeDirectory("servers/" + server);
+            }
+        }
+
+        // 共享层, 只替换一次
+        Map<String, Set<String>> sharedKeys = new ConcurrentHashMap<>();
+        Map<Path, ContentType> types;
+        try (BuildMetrics.Stage stage = metrics == null ? null : metrics.stage("shared copy", target)) {
+            Files.createDirectories(sharedTarget);
+            types = copyDirectory(sharedSource, sharedTarget, buildSettings.suffixes(), buildSettings.materialization(), stage);
+        }
+        try (BuildMetrics.Stage stage = metrics == null ? null : metrics.stage("shared placeholder", target)) {
+            PlaceholderRenderer renderer = new PlaceholderRenderer(placeholdersUtils);
+            PlaceholderIndex finalIndex = index;
+            ParallelExecutor.forEach(new ArrayList<>(types.keySet()), buildSettings.threads(), path -> {
+                logger.debug("placeholder {}", path);
+                long start = System.nanoTime();
+                long size = Files.size(path);
+                List<PlaceholderToken> tokens = new ArrayList<>();
+                int substitutions = renderer.renderFile(path, path, types.get(path), tokens, buildSettings.streamingThreshold());
+
+                String relativePath = BuildManifest.relativize(sharedTarget, path);
+                Set<String> keys = new HashSet<>();
+                tokens.forEach(token -> keys.add(token.placeholder().text()));
+                sharedKeys.put(relativePath, keys);
+                finalIndex.put("files/" + relativePath, tokens);
+                if (stage != null) {
+                    stage.file(path, System.nanoTime() - start, size, substitutions > 0 ? Files.size(path) : 0, substitutions);
+                }
+            });
+        }
+
+        // 每个服务端: 自己的文件 + 没有被覆盖的共享层文件
+        Map<Path, Path> outputs = new LinkedHashMap<>(); // 输出 -> 来源
+        for (String server : servers) {
+            Path serverSource = serversSource.resolve(server);
+            Path serverTarget = serversTarget.resolve(server);
+            for (Path file : files(serverSource)) {
+                outputs.put(serverTarget.resolve(serverSource.relativize(file).toString()), file);
+            }
+            for (Path file : files(sharedSource)) {
+                outputs.putIfAbsent(serverTarget.resolve(sharedSource.relativize(file).toString()), file);
+            }
+        }
+        for (Path output : outputs.keySet()) {
+            Files.createDirectories(output.getParent());
+        }
+
+        Map<String, PlaceholderRenderer> renderers = new HashMap<>();
+        scopes.forEach((server, scope) -> renderers.put(server, new PlaceholderRenderer(scope)));
+        Materializer materializer = new Materializer(buildSettings.materialization());
+        try (BuildMetrics.Stage stage = metrics == null ? null : metrics.stage("targets", target)) {
+            PlaceholderIndex finalIndex = index;
+            ParallelExecutor.forEach(new ArrayList<>(outputs.keySet()), buildSettings.threads(), output -> {
+                long start = System.nanoTime();
+                Path file = outputs.get(output);
+                String server = serversTarget.relativize(output).getName(0).toString();
+                boolean templated = matchesSuffix(file.getFileName().toString(), buildSettings.suffixes());
+                boolean written = true;
+                int substitutions = 0;
+
+                if (file.startsWith(serversSource)) {
+                    if (templated) {
+                        logger.debug("placeholder {}", output);
+                        List<PlaceholderToken> tokens = new ArrayList<>();
+                        substitutions = renderers.get(server).renderFile(file, output, tokens, buildSettings.streamingThreshold());
+                        finalIndex.put(BuildManifest.relativize(source, file), tokens);
+                    } else {
+                        written = materializer.materialize(file, output);
+                    }
+                } else {
+                    String relativePath = BuildManifest.relativize(sharedSource, file);
+                    Set<String> keys = templated ? sharedKeys.get(relativePath) : null;
+                    if (keys != null && isOverridden(scopes.get(server), keys)) {
+                        logger.debug("placeholder {}", output);
+                        substitutions = renderers.get(server).renderFile(file, output, null, buildSettings.streamingThreshold());
+                    } else {
+                        // 共享层已经替换好的文件
+                        written = materializer.materialize(sharedTarget.resolve(relativePath), output);
+                    }
+                }
+
+                if (stage != null) {
+                    long size = Files.size(file);
+                    stage.file(output, System.nanoTime() - start, written ? size : 0, written ? Files.size(output) : 0, substitutions);
+                }
+            });
+        }
+
+        List<String> unused = index.save(indexPath, placeholdersUtils.keys());
+        if (selected == null && !unused.isEmpty()) {
+            logger.warn("{} placeholders are not used by any file: {}", unused.size(), unused);
+        }
+        logger.info("Built {} servers: {}", servers.size(), servers);
+    }
+
+    static @NotNull List<String> servers(@NotNull Path serversSource, @Nullable Collection<String> selected) throws IOException {
+        List<String> servers = new ArrayList<>();
+        if (Files.isDirectory(serversSource)) {
+            try (Stream<Path> stream = Files.list(serversSource)) {
+                stream.filter(Files::isDirectory).forEach(path -> servers.add(path.getFileName().toString()));
+            }
+        }
+        Collections.sort(servers);
+        if (selected == null) {
+            return servers;
+        }
+
+        for (String server : selected) {
+            if (!servers.contains(server)) {
+                throw new IllegalArgumentException("Unknown server: " + server + ", available: " + servers);
+            }
+        }
+        return new ArrayList<>(new TreeSet<>(selected));
+    }
+
+    static @NotNull List<Path> files(@NotNull Path folder) throws IOException {
+        return FileTreeSnapshot.walk(folder).files();
+    }
+
+    // 共享层文件用到的值是否被服务端覆盖
+    private boolean isOverridden(@NotNull PlaceholdersUtils scope, @NotNull Set<String> keys) {
+        for (String key : keys) {
+            if (!scope.get(key).equals(placeholdersUtils.get(key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 服务端的 papi: placeholder.data 合并 placeholder.servers.&lt;名称&gt; 后重新解析引用,
+     * 变量使用全局已获取的值 (按服务端不同的变量如 $(port.x) 除外), 没有被覆盖的 key 与共享层一致
+     */
+    @NotNull PlaceholdersUtils scope(@NotNull String server) throws IOException {
+        JsonObject settings = rawSettings.deepCopy();
+        JsonObject placeholder = settings.getAsJsonObject("placeholder");
+        if (!placeholder.has("data") || !placeholder.get("data").isJsonObject()) {
+            placeholder.add("data", new JsonObject());
+        }
+        JsonObject data = placeholder.getAsJsonObject("data");
+
+        for (String key : placeholdersUtils.keys()) {
+            JsonElement value = getPath(data, key);
+            ValueProviders.Variable variable = value != null && value.isJsonPrimitive() ? ValueProviders.parse(value.getAsString()) : null;
+            if (variable != null && !variable.provider().perServer()) {
+                // 获取失败的变量保持原样, 只有文件用到时才报错
+                String resolved = placeholdersUtils.getIfResolved(key);
+                if (resolved != null) {
+                    setPath(data, key, new JsonPrimitive(resolved));
+                }
+            }
+        }
+
+        if (placeholder.has("servers") && placeholder.get("servers").isJsonObject()) {
+            JsonElement overrides = placeholder.getAsJsonObject("servers").get(server);
+            if (overrides != null && overrides.isJsonObject()) {
+                merge(data, overrides.getAsJsonObject());
+            }
+        }
+        placeholder.remove("servers");
+
+        int serverIndex = servers(source.resolve("servers"), null).indexOf(server);
+        ProviderContext context = placeholdersUtils.context().forServer(server, Math.max(serverIndex, 0));
+        return new PlaceholdersUtils(SettingsResolver.resolve(settings, context), context);
+    }
+
+    private static @Nullable JsonElement getPath(@NotNull JsonObject data, @NotNull String path) {
+        JsonElement current = data;
+        for (String key : path.split("\\.")) {
+            if (!current.isJsonObject() || !current.getAsJsonObject().has(key)) {
+                return null;
+            }
+            current = current.getAsJsonObject().get(key);
+        }
+        return current;
+    }
+
+    private static void setPath(@NotNull JsonObject data, @NotNull String path, @NotNull JsonElement value) {
+        String[] keys = path.split("\\.");
+        JsonObject current = data;
+        for (int i = 0; i < keys.length - 1; i++) {
+            current = current.getAsJsonObject(keys[i]);
+        }
+        current.add(keys[keys.length - 1], value);
+    }
+
+    // 递归合并, overrides 中的值优先
+    private static void merge(@NotNull JsonObject data, @NotNull JsonObject overrides) {
+        for (Map.Entry<String, JsonElement> entry : overrides.entrySet()) {
+            JsonElement existing = data.get(entry.getKey());
+            if (existing != null && existing.isJsonObject() && entry.getValue().isJsonObject()) {
+                merge(existing.getAsJsonObject(), entry.getValue().getAsJsonObject());
+            } else {
+                data.add(entry.getKey(), entry.getValue().deepCopy());
+            }
+        }
+    }
+}
@@ -2,22 +2,24 @@ package fun.xiantiao.mcpacker.utils;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import fun.xiantiao.mcpacker.enums.PlaceholderType;
-import fun.xiantiao.mcpacker.records.Placeholder;
+import fun.xiantiao.mcpacker.enums.ContentType;
+import fun.xiantiao.mcpacker.enums.MaterializationStrategy;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.stream.Stream;
 
 import static fun.xiantiao.mcpacker.Main.getLogger;
 
@@ -69,17 +71,43 @@ public class Tool {
             return;
         }
 
-        // 使用 Files.walk 遍历文件夹，深度优先删除内容
-        Files.walk(folderPath)
-                .sorted(Comparator.reverseOrder()) // 先删除子目录或文件，再删除父目录
-                .forEach(path -> {
-                    try {
+        deleteFolder(FileTreeSnapshot.walk(folderPath));
+    }
+
+    /**
+     * 按已有的快照删除文件夹及其所有内容, 不再重新遍历
+     *
+     * @param snapshot 要删除的文件夹的快照
+     * @throws IOException 如果删除失败
+     */
+    public static void deleteFolder(FileTreeSnapshot snapshot) throws IOException {
+        // 文件夹为符号链接 (built 使用 symlink 切换) 时, 同时删除链接和其指向的文件夹
+        Path linked = Files.isSymbolicLink(snapshot.root()) && Files.exists(snapshot.root()) ? snapshot.root().toRealPath() : null;
+
+        for (Path file : snapshot.files()) {
+            Files.deleteIfExists(file);
+            logger.debug("Deleted: {}", file);
+        }
+
+        // 先删除子目录，再删除父目录
+        List<Path> directories = snapshot.directories();
+        for (int i = directories.size() - 1; i >= 0; i--) {
+            Path directory = directories.get(i);
+            try {
+                Files.deleteIfExists(directory);
+            } catch (DirectoryNotEmptyException e) {
+                // 快照中没有的条目 (如失效的链接), 遍历删除
+                try (Stream<Path> stream = Files.walk(directory)) {
+                    for (Path path : (Iterable<Path>) stream.sorted(Comparator.reverseOrder())::iterator) {
                         Files.delete(path);
-                        logger.info("Deleted: {}", path);
-                    } catch (IOException e) {
-                        throw new RuntimeException("Failed to delete: " + path, e);
                     }
-                });
+                }
+            }
+            logger.debug("Deleted: {}", directory);
+        }
+        if (linked != null && Files.deleteIfExists(linked)) {
+            logger.debug("Deleted: {}", linked);
+        }
     }
 
     /**
@@ -90,32 +118,94 @@ public class Tool {
      * @throws IOException 如果发生 I/O 错误
      */
     public static void copyDirectory(Path source, Path destination) throws IOException {
-        File sourceFile = source.toFile();
-        File destinationFile = destination.toFile();
+        copyDirectory(source, destination, List.of(), MaterializationStrategy.Copy);
+    }
 
-        // 如果源是文件，直接复制文件
-        if (sourceFile.isFile()) {
-            Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING);
-            logger.info("copied {} to {}", source, destination);
-            return;
-        }
+    /**
+     * 递归复制文件夹和文件, 名称匹配后缀且包含 papi 的文件 (会被替换) 总是真正复制, 其余文件按策略放置
+     *
+     * @param source      源文件夹或文件路径
+     * @param destination 目标文件夹路径
+     * @param suffixes    需要替换 papi 的文件后缀
+     * @param strategy    其余文件的放置策略
+     * @throws IOException 如果发生 I/O 错误
+     */
+    public static void copyDirectory(Path source, Path destination, List<String> suffixes, MaterializationStrategy strategy) throws IOException {
+        copyDirectory(source, destination, suffixes, strategy, null);
+    }
 
-        // 如果源是文件夹，创建目标文件夹
-        if (!destinationFile.exists() && !destinationFile.mkdirs()) {
-            throw new IOException("Failed to create directory: " + destinationFile);
+    /**
+     * 递归复制文件夹和文件, 并记录每个文件的耗时和读写字节数
+     *
+     * @param source      源文件夹或文件路径
+     * @param destination 目标文件夹路径
+     * @param suffixes    需要替换 papi 的文件后缀
+     * @param strategy    其余文件的放置策略
+     * @param stage       记录到的构建阶段, 可以为 null
+     * @return 名称匹配后缀的文件 (目标路径) 和复制时检测的内容类型, 替换时不再重新检测
+     * @throws IOException 如果发生 I/O 错误
+     */
+    public static Map<Path, ContentType> copyDirectory(Path source, Path destination, List<String> suffixes, MaterializationStrategy strategy,
+                                                       @Nullable BuildMetrics.Stage stage) throws IOException {
+        // 如果源是文件，直接复制文件
+        if (Files.isRegularFile(source)) {
+            Map<Path, ContentType> types = new LinkedHashMap<>();
+            ContentType type = copyFile(source, destination, Files.size(source), suffixes, new Materializer(strategy), stage);
+            if (type != null) {
+                types.put(destination, type);
+            }
+            return types;
         }
 
-        // 遍历源文件夹中的所有文件和子文件夹
-        File[] files = sourceFile.listFiles();
-        if (files == null) return; // 空文件夹
+        return copyDirectory(FileTreeSnapshot.walk(source), destination, suffixes, strategy, stage);
+    }
 
-        for (File file : files) {
-            Path subSource = file.toPath();
-            Path subDestination = destination.resolve(file.getName());
+    /**
+     * 按已有的快照复制文件夹, 不再重新遍历和读取文件大小
+     *
+     * @param source      源文件夹的快照
+     * @param destination 目标文件夹路径
+     * @param suffixes    需要替换 papi 的文件后缀
+     * @param strategy    其余文件的放置策略
+     * @param stage       记录到的构建阶段, 可以为 null
+     * @return 名称匹配后缀的文件 (目标路径) 和复制时检测的内容类型, 按路径排序
+     * @throws IOException 如果发生 I/O 错误
+     */
+    public static Map<Path, ContentType> copyDirectory(FileTreeSnapshot source, Path destination, List<String> suffixes,
+                                                       MaterializationStrategy strategy, @Nullable BuildMetrics.Stage stage) throws IOException {
+        Path root = source.root();
+        for (Path directory : source.directories()) {
+            Files.createDirectories(destination.resolve(root.relativize(directory).toString()));
+        }
+        Map<Path, ContentType> types = new LinkedHashMap<>();
+        Materializer materializer = new Materializer(strategy);
+        for (Path file : source.files()) {
+            long size = source.get(BuildManifest.relativize(root, file)).size();
+            Path target = destination.resolve(root.relativize(file).toString());
+            ContentType type = copyFile(file, target, size, suffixes, materializer, stage);
+            if (type != null) {
+                types.put(target, type);
+            }
+        }
+        return types;
+    }
 
-            // 递归处理子文件或文件夹
-            copyDirectory(subSource, subDestination);
+    // 返回名称匹配后缀的文件的内容类型, 其他文件为 null
+    private static @Nullable ContentType copyFile(Path source, Path destination, long size, List<String> suffixes,
+                                                  Materializer materializer, @Nullable BuildMetrics.Stage stage) throws IOException {
+        long start = System.nanoTime();
+        boolean written = true;
+        ContentType type = matchesSuffix(source.getFileName().toString(), suffixes) ? ContentSniffer.sniff(source) : null;
+        if (type == ContentType.Templated) {
+            Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING);
+            logger.debug("copied {} to {}", source, destination);
+        } else {
+            written = materializer.materialize(source, destination);
         }
+        if (stage != null) {
+            stage.file(destination, System.nanoTime() - start, written ? size : 0, written ? size : 0, 0);
+        }
+        return type;
     }
 
     /**
@@ -168,12 +258,7 @@ public class Tool {
         }
 
         if (recursive) {
-            // 使用 Files.walk 遍历文件夹，深度优先
-            Files.walk(folderPath)
-                    .filter(path -> !path.toFile().isDirectory())
-                    .filter(path -> !path.equals(folderPath)) // 排除自身
-                    .filter(path -> matchesSuffix(path.getFileName().toString(), suffixes)) // 按后缀过滤
-                    .forEach(subfolders::add);
+            subfolders.addAll(FileTreeSnapshot.walk(folderPath).files(suffixes));
         } else {
             // 使用 Files.newDirectoryStream 获取直接子文件夹
             try (DirectoryStream<Path> stream = Files.newDirectoryStream(folderPath)) {
@@ -194,7 +279,7 @@ public class Tool {
      * @param suffixes   后缀列表
      * @return 如果名称以任意一个后缀结尾，则返回 true
      */
-    private static boolean matchesSuffix(String folderName, List<String> suffixes) {
+    public static boolean matchesSuffix(String folderName, List<String> suffixes) {
         if (suffixes == null || suffixes.isEmpty()) {
             return true; // 如果没有指定后缀，默认匹配所有
         }
@@ -207,6 +292,59 @@ public class Tool {
         return false;
     }
 
+    /**
+     * 计算文件的 SHA-256
+     *
+     * @param filePath 文件路径
+     * @return 十六进制摘要
+     * @throws IOException 如果文件读取失败
+     */
+    public static @NotNull String hashFile(Path filePath) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream inputStream = Files.newInputStream(filePath)) {
+            byte[] buffer = new byte[64 * 1024];
+            int length;
+            while ((length = inputStream.read(buffer)) > 0) {
+                digest.update(buffer, 0, length);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return 新的 SHA-256 摘要
+     */
+    public static @NotNull MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 读取 unix 权限位, 用于写入压缩包
+     *
+     * @param path      文件或文件夹
+     * @param directory 是否为文件夹
+     * @return 权限位 (如 0755), 文件系统不支持 POSIX 权限时文件为 0644, 文件夹为 0755
+     * @throws IOException 读取失败
+     */
+    public static int unixMode(Path path, boolean directory) throws IOException {
+        Set<PosixFilePermission> permissions;
+        try {
+            permissions = Files.getPosixFilePermissions(path);
+        } catch (UnsupportedOperationException e) {
+            return directory ? 0755 : 0644;
+        }
+        int mode = 0;
+        for (PosixFilePermission permission : permissions) {
+            // OWNER_READ 到 OTHERS_EXECUTE 依次对应 0400 到 0001
+            mode |= 0400 >> permission.ordinal();
+        }
+        return mode;
+    }
+
     /**
      * 读取文件内容为 String
      *
@@ -221,7 +359,7 @@ public class Tool {
         return Files.readString(filePath);
     }
     /**
-     * 将文本内容全覆盖写入指定文件
+     * 将文本内容全覆盖写入指定文件, 使用 UTF-8 (与 readFileToString 和流式替换相同)
      *
      * @param filePath 文件路径
      * @param content  要写入的内容
@@ -229,89 +367,11 @@ public class Tool {
      */
     public static void writeFileOverwrite(Path filePath, String content) throws IOException {
         // 使用 try-with-resources 自动关闭资源
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath.toFile()))) {
+        try (BufferedWriter writer = Files.newBufferedWriter(filePath)) {
             writer.write(content);
         }
     }
 
-    // 方法返回匹配的内容
-    public static Set<Placeholder> extractPlaceholderValues(String input, PlaceholderType type) {
-        // 匹配 $(mcp.([^)]+))(number)
-        String patternWithNumber = "\\$\\(mcp\\.([^)]+)\\)\\(number\\)";
-        // 匹配 $(mcp.([^)]+))
-        String patternWithoutNumber = "\\$\\(mcp\\.([^)]+)\\)";
-
-        // 编译正则表达式
-        Pattern withNumberPattern = Pattern.compile(patternWithNumber);
-        Pattern withoutNumberPattern = Pattern.compile(patternWithoutNumber);
-
-        // 创建结果集合
-        Set<Placeholder> results = new HashSet<>();
-
-        if (type == PlaceholderType.Number) {
-            // 匹配 $(mcp.([^)]+))(number)
-            Matcher withNumberMatcher = withNumberPattern.matcher(input);
-            while (withNumberMatcher.find()) {
-                results.add(new Placeholder(withNumberMatcher.group(1), PlaceholderType.Number));
-            }
-        } else {
-            // 匹配 $(mcp.([^)]+)) 并排除带 (number) 的匹配
-            Matcher withoutNumberMatcher = withoutNumberPattern.matcher(input);
-            while (withoutNumberMatcher.find()) {
-                String matchedText = withoutNumberMatcher.group(1);
-                // 确保不匹配带 (number) 的部分
-                if (!input.contains("$(mcp." + matchedText + ")(number)")) {
-                    results.add(new Placeholder(matchedText, PlaceholderType.Text));
-                }
-            }
-        }
-
-        return results;
-    }
-
-    /**
-     * 压缩整个文件夹
-     * @param sourceFolder 文件夹
-     * @param zipFileName 输出位置
-     * @throws IOException 失败
-     */
-    public static void compressFolder(Path sourceFolder, Path zipFileName) throws IOException {
-        logger.info("compressing {}", sourceFolder);
-        try (FileOutputStream fos = new FileOutputStream(zipFileName.toFile());
-             ZipOutputStream zos = new ZipOutputStream(fos)) {
-
-            File folder = new File(sourceFolder.toUri());
-            addFolderToZip(folder, folder.getName(), zos);
-        }
-    }
-    // 递归添加文件夹内容到Zip
-    private static void addFolderToZip(File folder, String parentFolder, ZipOutputStream zos) throws IOException {
-        File[] files = folder.listFiles();
-        if (files == null) return;
-        for (File file : files) {
-            if (file.isDirectory()) {
-                addFolderToZip(file, parentFolder + "/" + file.getName(), zos);
-            } else {
-                addFileToZip(file, parentFolder + "/" + file.getName(), zos);
-            }
-        }
-    }
-    // 添加单个文件到Zip
-    private static void addFileToZip(File file, String entryName, ZipOutputStream zos) throws IOException {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            ZipEntry zipEntry = new ZipEntry(entryName);
-            zos.putNextEntry(zipEntry);
-
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = fis.read(buffer)) > 0) {
-                zos.write(buffer, 0, length);
-            }
-
-            zos.closeEntry();
-        }
-    }
-
     public static @NotNull String getStringTime() {
         // 获取当前时间
         Date now = new Date();
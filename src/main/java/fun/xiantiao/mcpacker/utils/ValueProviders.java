@@ -0,0 +1,224 @@
+package fun.xiantiao.mcpacker.utils;
+
+import fun.xiantiao.mcpacker.providers.ValueProvider;
+import fun.xiantiao.mcpacker.records.ProviderContext;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.SecureRandom;
+import java.util.*;
+
+import static fun.xiantiao.mcpacker.Main.getLogger;
+
+/**
+ * 设置中的变量 $(名称.参数), 值由 {@link ValueProvider} 获取
+ * <p>
+ * 一次解析的变量按提供者分组批量获取; ttl 大于 0 的提供者在进程内缓存,
+ * 同一个参数只获取一次, 监听模式下多次构建也不会重复请求. 缓存超过 {@link #CACHE_SIZE} 时淘汰最久未使用的值
+ */
+public final class ValueProviders {
+
+    private static final Logger logger = getLogger();
+
+    private static final int CACHE_SIZE = 4096;
+
+    // 所有随机变量共用, 避免每次生成都重新初始化
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final Map<String, ValueProvider> PROVIDERS = load();
+
+    private static final Map<String, Cached> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private record Cached(String value, long expires) {
+    }
+
+    /**
+     * @param provider 提供者
+     * @param argument 变量中 . 之后的部分
+     */
+    public record Variable(ValueProvider provider, String argument) {
+    }
+
+    private ValueProviders() {
+    }
+
+    private static @NotNull Map<String, ValueProvider> load() {
+        Map<String, ValueProvider> providers = new HashMap<>();
+        for (ValueProvider provider : ServiceLoader.load(ValueProvider.class, ValueProviders.class.getClassLoader())) {
+            if ("mcp".equals(provider.name())) {
+                logger.warn("Value provider {} can not be named mcp, ignored.", provider.getClass().getName());
+            } else if (providers.putIfAbsent(provider.name(), provider) != null) {
+                logger.warn("Duplicate value provider {}: {} ignored.", provider.name(), provider.getClass().getName());
+            }
+        }
+        return Map.copyOf(providers);
+    }
+
+    /**
+     * @return 共享的随机源
+     */
+    public static @NotNull SecureRandom random() {
+        return RANDOM;
+    }
+
+    /**
+     * @param value 设置中的值
+     * @return 值整个为已注册提供者的变量时返回该变量, 否则为 null
+     */
+    public static @Nullable Variable parse(@NotNull String value) {
+        if (!value.startsWith("$(") || !value.endsWith(")")) {
+            return null;
+        }
+        int dot = value.indexOf('.', 2);
+        if (dot < 0) {
+            return null;
+        }
+        ValueProvider provider = PROVIDERS.get(value.substring(2, dot));
+        return provider == null ? null : new Variable(provider, value.substring(dot + 1, value.length() - 1));
+    }
+
+    /**
+     * @param value 设置中的值
+     * @return 是否为每次构建获取的变量
+     */
+    public static boolean isVariable(@NotNull String value) {
+        return parse(value) != null;
+    }
+
+    /**
+     * 获取单个变量, 不是变量时原样返回
+     */
+    public static @NotNull String resolve(@NotNull String value, @NotNull ProviderContext context) {
+        return resolve(List.of(value), context).get(0);
+    }
+
+    /**
+     * 批量获取变量, 每个提供者只调用一次
+     *
+     * @param values  设置中的值, 不是变量的原样返回
+     * @param context 上下文
+     * @return 与 values 顺序相同的值
+     * @throws UncheckedIOException     提供者获取失败
+     * @throws IllegalArgumentException 变量参数无效
+     */
+    public static @NotNull List<String> resolve(@NotNull List<String> values, @NotNull ProviderContext context) {
+        return resolve(values, context, null);
+    }
+
+    /**
+     * 批量获取变量, 一个提供者失败时记录下来, 不影响其他提供者的变量
+     *
+     * @param values   设置中的值, 不是变量的原样返回
+     * @param context  上下文
+     * @param failures 获取失败的位置 -> 异常, 这些位置的结果为 null; 为 null 时直接抛出
+     * @return 与 values 顺序相同的值
+     */
+    public static @NotNull List<String> resolve(@NotNull List<String> values, @NotNull ProviderContext context,
+                                                @Nullable Map<Integer, RuntimeException> failures) {
+        String[] results = new String[values.size()];
+        Map<ValueProvider, Map<Integer, String>> batches = new LinkedHashMap<>();
+        for (int i = 0; i < values.size(); i++) {
+            Variable variable = parse(values.get(i));
+            if (variable == null) {
+                results[i] = values.get(i);
+            } else {
+                batches.computeIfAbsent(variable.provider(), provider -> new LinkedHashMap<>()).put(i, variable.argument());
+            }
+        }
+
+        batches.forEach((provider, arguments) -> {
+            try {
+                resolveBatch(provider, arguments, results, context);
+            } catch (RuntimeException e) {
+                if (failures == null) {
+                    throw e;
+                }
+                logger.debug("Failed to resolve $({}.*) variables", provider.name(), e);
+                arguments.keySet().forEach(index -> failures.put(index, e));
+            }
+        });
+        return Arrays.asList(results);
+    }
+
+    // arguments: 结果位置 -> 参数
+    private static void resolveBatch(@NotNull ValueProvider provider, @NotNull Map<Integer, String> arguments,
+                                     @NotNull String[] results, @NotNull ProviderContext context) {
+        long ttl = context.options(provider.name()).has("ttl")
+                ? context.options(provider.name()).get("ttl").getAsLong()
+                : provider.ttl();
+
+        if (ttl <= 0) {
+            List<String> fetched = fetch(provider, new ArrayList<>(arguments.values()), context);
+            int i = 0;
+            for (int index : arguments.keySet()) {
+                results[index] = fetched.get(i++);
+            }
+            return;
+        }
+
+        // 参数 -> 结果位置, 只获取缓存中没有的参数
+        Map<String, List<Integer>> missing = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        synchronized (CACHE) {
+            for (Map.Entry<Integer, String> entry : arguments.entrySet()) {
+                String key = cacheKey(provider, entry.getValue(), context);
+                Cached cached = CACHE.get(key);
+                if (cached != null && cached.expires() > now) {
+                    results[entry.getKey()] = cached.value();
+                } else {
+                    if (cached != null) {
+                        CACHE.remove(key);
+                    }
+                    missing.computeIfAbsent(entry.getValue(), argument -> new ArrayList<>()).add(entry.getKey());
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        List<String> fetched = fetch(provider, new ArrayList<>(missing.keySet()), context);
+        long expires = now > Long.MAX_VALUE - ttl ? Long.MAX_VALUE : now + ttl;
+        int i = 0;
+        synchronized (CACHE) {
+            for (Map.Entry<String, List<Integer>> entry : missing.entrySet()) {
+                String value = fetched.get(i++);
+                CACHE.put(cacheKey(provider, entry.getKey(), context), new Cached(value, expires));
+                for (int index : entry.getValue()) {
+                    results[index] = value;
+                }
+            }
+        }
+    }
+
+    private static @NotNull List<String> fetch(@NotNull ValueProvider provider, @NotNull List<String> arguments,
+                                               @NotNull ProviderContext context) {
+        List<String> values;
+        try {
+            values = provider.resolve(arguments, context);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to resolve $(" + provider.name() + ".*) variables", e);
+        }
+        if (values.size() != arguments.size()) {
+            throw new IllegalStateException("Value provider " + provider.name() + " returned " + values.size()
+                    + " values for " + arguments.size() + " variables");
+        }
+        logger.debug("Resolved {} $({}.*) variables", arguments.size(), provider.name());
+        return values;
+    }
+
+    // 选项不同 (如换了地址) 时不使用旧值
+    private static @NotNull String cacheKey(@NotNull ValueProvider provider, @NotNull String argument,
+                                            @NotNull ProviderContext context) {
+        String server = provider.perServer() ? context.server() + "#" + context.serverIndex() : "";
+        return provider.name() + "\0" + context.options(provider.name()) + "\0" + server + "\0" + argument;
+    }
+}
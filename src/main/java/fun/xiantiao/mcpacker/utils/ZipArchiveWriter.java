@@ -0,0 +1,228 @@
+package fun.xiantiao.mcpacker.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 写入已经压缩好的条目的 zip 文件
+ * <p>
+ * java.util.zip.ZipOutputStream 只能自己压缩, 无法多线程; 这里条目由调用方压缩 (raw deflate 或不压缩),
+ * 本类只负责写入文件头和中央目录, 超过 4GB 或 65535 个条目时自动使用 zip64.
+ * 中央目录按 unix 格式记录权限位, 解压时保留可执行等权限
+ */
+public class ZipArchiveWriter implements Closeable {
+
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRIES_LIMIT = 0xFFFF;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int MADE_BY_UNIX = 3 << 8;
+    private static final int TYPE_FILE = 0100000;
+    private static final int TYPE_DIRECTORY = 040000;
+    private static final int DOS_DIRECTORY = 0x10;
+
+    private record Entry(byte[] name, int method, long crc, long size, long compressedSize,
+                         int dosTime, int dosDate, long offset, long externalAttributes) {
+    }
+
+    private final OutputStream out;
+    private final List<Entry> entries = new ArrayList<>();
+    private final byte[] copyBuffer = new byte[256 * 1024];
+    private long offset = 0;
+
+    public ZipArchiveWriter(@NotNull Path file) throws IOException {
+        this.out = new BufferedOutputStream(Files.newOutputStream(file), 1024 * 1024);
+    }
+
+    /**
+     * 写入一个条目
+     *
+     * @param name           条目名称
+     * @param method         {@link #STORED} 或 {@link #DEFLATED} (raw deflate)
+     * @param crc            未压缩数据的 CRC32
+     * @param size           未压缩大小
+     * @param compressedSize 压缩后大小, 从 data 中读取这么多字节
+     * @param lastModified   修改时间 (毫秒)
+     * @param mode           unix 权限位, 见 {@link Tool#unixMode}
+     * @param data           压缩后的数据
+     * @throws IOException 写入失败或 data 长度不足
+     */
+    public void addEntry(@NotNull String name, int method, long crc, long size, long compressedSize,
+                         long lastModified, int mode, @NotNull InputStream data) throws IOException {
+        addEntry(name, method, crc, size, compressedSize, lastModified, (long) (TYPE_FILE | mode & 07777) << 16, data);
+    }
+
+    /**
+     * 写入一个文件夹, 解压时空文件夹也会被创建
+     *
+     * @param name         条目名称, 没有以 / 结尾时补上
+     * @param lastModified 修改时间 (毫秒)
+     * @param mode         unix 权限位
+     * @throws IOException 写入失败
+     */
+    public void addDirectory(@NotNull String name, long lastModified, int mode) throws IOException {
+        addEntry(name.endsWith("/") ? name : name + "/", STORED, 0, 0, 0, lastModified,
+                (long) (TYPE_DIRECTORY | mode & 07777) << 16 | DOS_DIRECTORY, InputStream.nullInputStream());
+    }
+
+    private void addEntry(@NotNull String name, int method, long crc, long size, long compressedSize,
+                          long lastModified, long externalAttributes, @NotNull InputStream data) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean zip64 = size >= ZIP64_LIMIT || compressedSize >= ZIP64_LIMIT;
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            time = LocalDateTime.of(1980, 1, 1, 0, 0);
+        }
+        int dosTime = (time.getHour() << 11) | (time.getMinute() << 5) | (time.getSecond() >> 1);
+        int dosDate = ((time.getYear() - 1980) << 9) | (time.getMonthValue() << 5) | time.getDayOfMonth();
+
+        Entry entry = new Entry(nameBytes, method, crc, size, compressedSize, dosTime, dosDate, offset, externalAttributes);
+
+        writeInt(0x04034b50);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(FLAG_UTF8);
+        writeShort(method);
+        writeShort(dosTime);
+        writeShort(dosDate);
+        writeInt(crc);
+        writeInt(zip64 ? ZIP64_LIMIT : compressedSize);
+        writeInt(zip64 ? ZIP64_LIMIT : size);
+        writeShort(nameBytes.length);
+        writeShort(zip64 ? 20 : 0);
+        writeBytes(nameBytes);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(size);
+            writeLong(compressedSize);
+        }
+
+        long remaining = compressedSize;
+        while (remaining > 0) {
+            int length = data.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, remaining));
+            if (length < 0) {
+                throw new IOException("Unexpected end of data for zip entry: " + name);
+            }
+            out.write(copyBuffer, 0, length);
+            remaining -= length;
+        }
+        offset += compressedSize;
+
+        entries.add(entry);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (out) {
+            long centralStart = offset;
+            for (Entry entry : entries) {
+                writeCentralEntry(entry);
+            }
+            long centralSize = offset - centralStart;
+
+            if (entries.size() >= ZIP64_ENTRIES_LIMIT || centralStart >= ZIP64_LIMIT || centralSize >= ZIP64_LIMIT) {
+                long zip64EndOffset = offset;
+                writeInt(0x06064b50);
+                writeLong(44);
+                writeShort(VERSION_ZIP64);
+                writeShort(VERSION_ZIP64);
+                writeInt(0);
+                writeInt(0);
+                writeLong(entries.size());
+                writeLong(entries.size());
+                writeLong(centralSize);
+                writeLong(centralStart);
+
+                writeInt(0x07064b50);
+                writeInt(0);
+                writeLong(zip64EndOffset);
+                writeInt(1);
+            }
+
+            writeInt(0x06054b50);
+            writeShort(0);
+            writeShort(0);
+            writeShort(Math.min(entries.size(), ZIP64_ENTRIES_LIMIT));
+            writeShort(Math.min(entries.size(), ZIP64_ENTRIES_LIMIT));
+            writeInt(Math.min(centralSize, ZIP64_LIMIT));
+            writeInt(Math.min(centralStart, ZIP64_LIMIT));
+            writeShort(0);
+        }
+    }
+
+    private void writeCentralEntry(@NotNull Entry entry) throws IOException {
+        boolean sizes64 = entry.size() >= ZIP64_LIMIT || entry.compressedSize() >= ZIP64_LIMIT;
+        boolean offset64 = entry.offset() >= ZIP64_LIMIT;
+        int extraLength = (sizes64 ? 16 : 0) + (offset64 ? 8 : 0);
+        boolean zip64 = extraLength > 0;
+
+        writeInt(0x02014b50);
+        writeShort(MADE_BY_UNIX | (zip64 ? VERSION_ZIP64 : VERSION));
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(FLAG_UTF8);
+        writeShort(entry.method());
+        writeShort(entry.dosTime());
+        writeShort(entry.dosDate());
+        writeInt(entry.crc());
+        writeInt(sizes64 ? ZIP64_LIMIT : entry.compressedSize());
+        writeInt(sizes64 ? ZIP64_LIMIT : entry.size());
+        writeShort(entry.name().length);
+        writeShort(zip64 ? extraLength + 4 : 0);
+        writeShort(0); // comment
+        writeShort(0); // disk
+        writeShort(0); // internal attributes
+        writeInt(entry.externalAttributes());
+        writeInt(offset64 ? ZIP64_LIMIT : entry.offset());
+        writeBytes(entry.name());
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(extraLength);
+            if (sizes64) {
+                writeLong(entry.size());
+                writeLong(entry.compressedSize());
+            }
+            if (offset64) {
+                writeLong(entry.offset());
+            }
+        }
+    }
+
+    // zip 使用小端序
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+        offset += 2;
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xFFFF));
+        writeShort((int) ((value >>> 16) & 0xFFFF));
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt(value & ZIP64_LIMIT);
+        writeInt(value >>> 32);
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        out.write(bytes);
+        offset += bytes.length;
+    }
+}
@@ -0,0 +1,96 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import fun.xiantiao.mcpacker.enums.BackupMode;
+import fun.xiantiao.mcpacker.enums.MaterializationStrategy;
+import fun.xiantiao.mcpacker.enums.OutputFormat;
+import fun.xiantiao.mcpacker.enums.SwapMode;
+import fun.xiantiao.mcpacker.records.BackupSettings;
+import fun.xiantiao.mcpacker.records.BuildSettings;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ArchiveBuilderTest {
+
+    private static final String SETTINGS = """
+            {
+              "placeholder": {
+                "suffixes": [".yml"],
+                "data": {"name": "global", "port": 1},
+                "servers": {"lobby": {"port": 2}}
+              }
+            }
+            """;
+
+    @Test
+    void tarKeepsDirectoriesAndModes(@TempDir Path folder) throws IOException {
+        Path source = pack(folder);
+        Path archive = builder(folder, source, OutputFormat.TarGz).build(null);
+
+        Map<String, TarArchiveWriterTest.TarEntry> entries = new TreeMap<>();
+        for (TarArchiveWriterTest.TarEntry entry : TarArchiveWriterTest.read(archive)) {
+            entries.put(entry.name(), entry);
+        }
+        assertEquals(List.of("files/", "files/empty/", "files/name.yml", "servers/", "servers/lobby/",
+                "servers/lobby/port.yml", "servers/lobby/start.sh"), List.copyOf(entries.keySet()));
+        assertEquals('5', entries.get("files/empty/").type());
+        assertEquals(0700, entries.get("files/empty/").mode());
+        assertEquals(0755, entries.get("servers/lobby/start.sh").mode());
+        assertEquals(0644, entries.get("files/name.yml").mode());
+        assertEquals("name: global", new String(entries.get("files/name.yml").data(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void zipTargetsMergeDirectories(@TempDir Path folder) throws IOException {
+        Path source = pack(folder);
+        List<Path> archives = builder(folder, source, OutputFormat.Zip)
+                .buildTargets(JsonParser.parseString(SETTINGS).getAsJsonObject(), null, null);
+        assertEquals(List.of(folder.resolve("archive/lobby.zip")), archives);
+
+        try (ZipFile zipFile = new ZipFile(archives.get(0).toFile())) {
+            assertEquals(List.of("empty/", "name.yml", "port.yml", "start.sh"), zipFile.stream().map(ZipEntry::getName).toList());
+            assertEquals("port: 2", new String(zipFile.getInputStream(zipFile.getEntry("port.yml")).readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static Path pack(Path folder) throws IOException {
+        Path source = folder.resolve("default");
+        write(source.resolve("files/name.yml"), "name: $(mcp.name)");
+        Files.createDirectories(source.resolve("files/empty"));
+        Files.setPosixFilePermissions(source.resolve("files/empty"), PosixFilePermissions.fromString("rwx------"));
+        write(source.resolve("servers/lobby/port.yml"), "port: $(mcp.port)");
+        write(source.resolve("servers/lobby/start.sh"), "#!/bin/sh\n");
+        Files.setPosixFilePermissions(source.resolve("servers/lobby/start.sh"), PosixFilePermissions.fromString("rwxr-xr-x"));
+        Files.setPosixFilePermissions(source.resolve("files/name.yml"), PosixFilePermissions.fromString("rw-r--r--"));
+        return source;
+    }
+
+    private static ArchiveBuilder builder(Path folder, Path source, OutputFormat output) {
+        JsonObject settings = SettingsResolver.resolve(JsonParser.parseString(SETTINGS).getAsJsonObject());
+        BuildSettings buildSettings = new BuildSettings(List.of(".yml"), 1, false, MaterializationStrategy.Copy,
+                Long.MAX_VALUE, false, output, SwapMode.Rename);
+        BackupSettings backupSettings = new BackupSettings(BackupMode.Zip, 2, Deflater.DEFAULT_COMPRESSION, Map.of(), 0);
+        return new ArchiveBuilder(source, folder.resolve("archive"), folder.resolve("index.json"), buildSettings,
+                backupSettings, new PlaceholdersUtils(settings));
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+}
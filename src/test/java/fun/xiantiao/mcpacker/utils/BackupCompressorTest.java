@@ -0,0 +1,82 @@
+package fun.xiantiao.mcpacker.utils;
+
+import fun.xiantiao.mcpacker.enums.BackupMode;
+import fun.xiantiao.mcpacker.records.BackupSettings;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BackupCompressorTest {
+
+    @Test
+    void storedAndDeflatedEntriesRoundTrip(@TempDir Path folder) throws IOException {
+        Path source = folder.resolve("built");
+        Files.createDirectories(source.resolve("servers/lobby/world/region"));
+        Files.createDirectories(source.resolve("servers/lobby/empty"));
+        Random random = new Random(1);
+
+        Map<String, byte[]> expected = new TreeMap<>();
+        expected.put("built/config.yml", "name: lobby\n".repeat(1000).getBytes());
+        expected.put("built/servers/lobby/world/region/r.0.0.mca", randomBytes(random, 100_000));
+        // 大于内存上限, 经过临时文件
+        expected.put("built/servers/lobby/world/region/r.0.1.mca", randomBytes(random, 9 * 1024 * 1024));
+        expected.put("built/servers/lobby/big.yml", "k: v\n".repeat(2_000_000).getBytes());
+        expected.put("built/empty.yml", new byte[0]);
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            Path file = folder.resolve(entry.getKey());
+            Files.createDirectories(file.getParent());
+            Files.write(file, entry.getValue());
+        }
+
+        BackupSettings settings = new BackupSettings(BackupMode.Zip, 3, Deflater.DEFAULT_COMPRESSION,
+                Map.of(".mca", Deflater.NO_COMPRESSION), 0);
+        Path zip = folder.resolve("backup.zip");
+        new BackupCompressor(settings).compress(source, zip);
+
+        Map<String, byte[]> actual = new TreeMap<>();
+        Set<String> directories = new TreeSet<>();
+        // ZipInputStream 读完每个条目时校验 CRC 和大小
+        try (ZipInputStream input = new ZipInputStream(Files.newInputStream(zip))) {
+            ZipEntry entry;
+            while ((entry = input.getNextEntry()) != null) {
+                byte[] data = input.readAllBytes();
+                if (entry.isDirectory()) {
+                    directories.add(entry.getName());
+                    continue;
+                }
+                int method = entry.getName().endsWith(".mca") ? ZipEntry.STORED : ZipEntry.DEFLATED;
+                assertEquals(method, entry.getMethod(), entry.getName());
+                actual.put(entry.getName(), data);
+            }
+        }
+
+        assertEquals(expected.keySet(), actual.keySet());
+        assertEquals(Set.of("built/", "built/servers/", "built/servers/lobby/", "built/servers/lobby/empty/",
+                "built/servers/lobby/world/", "built/servers/lobby/world/region/"), directories);
+        expected.forEach((name, data) -> assertArrayEquals(data, actual.get(name), name));
+        // 临时文件已删除
+        try (Stream<Path> files = Files.list(folder)) {
+            assertEquals(0, files.filter(path -> path.getFileName().toString().startsWith(".mcp-backup-")).count());
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
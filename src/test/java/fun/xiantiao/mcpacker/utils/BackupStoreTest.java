@@ -0,0 +1,102 @@
+package fun.xiantiao.mcpacker.utils;
+
+import fun.xiantiao.mcpacker.enums.BackupMode;
+import fun.xiantiao.mcpacker.records.BackupSettings;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BackupStoreTest {
+
+    private static final BackupSettings SETTINGS = new BackupSettings(BackupMode.Store, 2, Deflater.DEFAULT_COMPRESSION,
+            Map.of(".mca", Deflater.NO_COMPRESSION), 0);
+
+    @Test
+    void snapshotAndRestore(@TempDir Path folder) throws IOException {
+        Path source = folder.resolve("built");
+        write(source.resolve("files/a.yml"), "a: 1\n");
+        write(source.resolve("files/copy.yml"), "a: 1\n");
+        write(source.resolve("servers/lobby/r.0.0.mca"), "region");
+        write(source.resolve("servers/lobby/name.yml"), "名字: 值\n");
+
+        BackupStore store = new BackupStore(folder.resolve("store"), SETTINGS);
+        String name = store.snapshot(source);
+        assertEquals(List.of(name), store.listSnapshots());
+
+        // 相同内容只保存一次
+        assertEquals(3, objects(folder.resolve("store")).size());
+
+        Path restored = folder.resolve("restored");
+        store.restore(name, restored);
+        for (String file : List.of("files/a.yml", "files/copy.yml", "servers/lobby/r.0.0.mca", "servers/lobby/name.yml")) {
+            assertEquals(Files.readString(source.resolve(file)), Files.readString(restored.resolve(file)), file);
+            assertEquals(Files.getLastModifiedTime(source.resolve(file)).toMillis(),
+                    Files.getLastModifiedTime(restored.resolve(file)).toMillis(), file);
+        }
+
+        assertThrows(IOException.class, () -> store.restore(name, restored), "target must be empty");
+    }
+
+    @Test
+    void objectsAreStoredUnderTheHashOfTheirContent(@TempDir Path folder) throws IOException {
+        Path source = folder.resolve("default");
+        for (int i = 0; i < 20; i++) {
+            write(source.resolve("f" + i + ".yml"), "content " + i % 7 + "\n");
+        }
+        new BackupStore(folder.resolve("store"), SETTINGS).snapshot(source);
+
+        for (Path object : objects(folder.resolve("store"))) {
+            try (InputStream input = new InflaterInputStream(Files.newInputStream(object))) {
+                String hash = HexFormat.of().formatHex(Tool.sha256().digest(input.readAllBytes()));
+                assertEquals(hash, object.getFileName().toString());
+                assertEquals(hash.substring(0, 2), object.getParent().getFileName().toString());
+            }
+        }
+    }
+
+    @Test
+    void restoreRejectsEntriesOutsideTarget(@TempDir Path folder) throws IOException {
+        Path source = folder.resolve("built");
+        write(source.resolve("a.yml"), "a");
+        Path store = folder.resolve("store");
+        BackupStore backupStore = new BackupStore(store, SETTINGS);
+        backupStore.snapshot(source);
+        String hash = objects(store).get(0).getFileName().toString();
+
+        for (String key : List.of("../escape.yml", "a/../../escape.yml", "")) {
+            Files.writeString(store.resolve("snapshots/evil.json"),
+                    "{\"source\":\"built\",\"created\":0,\"files\":{\"" + key + "\":{\"hash\":\"" + hash + "\",\"size\":1,\"lastModified\":0}}}");
+            Path target = folder.resolve("restored");
+            assertThrows(IOException.class, () -> backupStore.restore("evil", target), key);
+            assertFalse(Files.exists(folder.resolve("escape.yml")), key);
+            assertFalse(Files.exists(target), key);
+        }
+
+        Files.writeString(store.resolve("snapshots/evil.json"),
+                "{\"source\":\"built\",\"created\":0,\"files\":{\"a.yml\":{\"hash\":\"../../../built/a.yml\",\"size\":1,\"lastModified\":0}}}");
+        assertThrows(IOException.class, () -> backupStore.restore("evil", folder.resolve("restored")));
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+
+    private static List<Path> objects(Path store) throws IOException {
+        try (Stream<Path> stream = Files.walk(store.resolve("objects"))) {
+            return stream.filter(Files::isRegularFile).toList();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package fun.xiantiao.mcpacker.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileTreeSnapshotTest {
+
+    @Test
+    void walkSaveAndLoad(@TempDir Path folder) throws IOException {
+        Path root = folder.resolve("default");
+        write(root.resolve("files/a.yml"), "a");
+        write(root.resolve("servers/lobby/b.txt"), "bb");
+        Files.createDirectories(root.resolve("servers/empty"));
+
+        FileTreeSnapshot snapshot = FileTreeSnapshot.walk(root);
+        assertEquals(List.of(root.resolve("files/a.yml"), root.resolve("servers/lobby/b.txt")), snapshot.files());
+        assertEquals(List.of(root.resolve("files/a.yml")), snapshot.files(List.of(".yml")));
+        assertTrue(snapshot.directories().contains(root.resolve("servers/empty")));
+        assertEquals(3, snapshot.get("").size());
+
+        Path saved = folder.resolve("snapshot.json");
+        snapshot.save(saved);
+        FileTreeSnapshot loaded = FileTreeSnapshot.load(saved, root);
+        assertNotNull(loaded);
+        assertEquals(snapshot.get("servers/lobby/b.txt"), loaded.get("servers/lobby/b.txt"));
+        assertEquals(snapshot.get(""), loaded.get(""));
+
+        assertTrue(FileTreeSnapshot.walk(folder.resolve("missing")).files().isEmpty());
+        assertNull(FileTreeSnapshot.load(folder.resolve("missing.json"), root));
+    }
+
+    @Test
+    void unchangedFilesSkipsChangedAndRacyFiles(@TempDir Path folder) throws IOException {
+        Path root = folder.resolve("default");
+        write(root.resolve("files/a.yml"), "a");
+        write(root.resolve("files/b.yml"), "b");
+        write(root.resolve("servers/lobby/c.txt"), "c");
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+        for (Path file : List.of(root.resolve("files/a.yml"), root.resolve("files/b.yml"), root.resolve("servers/lobby/c.txt"))) {
+            Files.setLastModifiedTime(file, old);
+        }
+
+        FileTreeSnapshot previous = FileTreeSnapshot.walk(root);
+        assertEquals(Set.of(), previous.unchangedFiles(null));
+        assertEquals(Set.of("files/a.yml", "files/b.yml", "servers/lobby/c.txt"), FileTreeSnapshot.walk(root).unchangedFiles(previous));
+
+        // 大小变化, 修改时间不变
+        write(root.resolve("files/a.yml"), "aa");
+        Files.setLastModifiedTime(root.resolve("files/a.yml"), old);
+        // 修改时间在快照时间附近, 可能在快照之后又被修改
+        Files.setLastModifiedTime(root.resolve("files/b.yml"), FileTime.fromMillis(System.currentTimeMillis()));
+        assertEquals(Set.of("servers/lobby/c.txt"), FileTreeSnapshot.walk(root).unchangedFiles(previous));
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+}
@@ -0,0 +1,76 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import fun.xiantiao.mcpacker.enums.MaterializationStrategy;
+import fun.xiantiao.mcpacker.enums.OutputFormat;
+import fun.xiantiao.mcpacker.enums.SwapMode;
+import fun.xiantiao.mcpacker.records.BuildSettings;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IncrementalBuilderTest {
+
+    private static final String SETTINGS = """
+            {
+              "placeholder": {
+                "suffixes": [".yml"],
+                "data": {"name": "lobby"}
+              }
+            }
+            """;
+
+    @Test
+    void repeatedBuildsFollowSourceChanges(@TempDir Path folder) throws IOException {
+        Path source = folder.resolve("default");
+        Path target = folder.resolve("built");
+        write(source.resolve("a.yml"), "name: $(mcp.name)");
+        write(source.resolve("b.txt"), "b");
+
+        IncrementalBuilder builder = builder(folder);
+        builder.build();
+        assertEquals("name: lobby", Files.readString(target.resolve("a.yml")));
+
+        write(source.resolve("a.yml"), "server: $(mcp.name)");
+        Files.delete(source.resolve("b.txt"));
+        builder.build();
+        assertEquals("server: lobby", Files.readString(target.resolve("a.yml")));
+        assertFalse(Files.exists(target.resolve("b.txt")));
+    }
+
+    @Test
+    void manifestChangedOnDiskIsReadAgain(@TempDir Path folder) throws IOException {
+        Path source = folder.resolve("default");
+        Path target = folder.resolve("built");
+        write(source.resolve("a.yml"), "name: $(mcp.name)");
+        write(source.resolve("b.txt"), "b");
+        builder(folder).build();
+
+        // 清单被其他进程改写, 内存中的清单不能再使用: 改写后的清单没有记录 b.txt, 输出不会被删除
+        Files.writeString(folder.resolve("manifest.json"), "{}");
+        Files.delete(source.resolve("b.txt"));
+        builder(folder).build();
+        assertTrue(Files.exists(target.resolve("b.txt")));
+        assertEquals("name: lobby", Files.readString(target.resolve("a.yml")));
+    }
+
+    private static IncrementalBuilder builder(Path folder) {
+        JsonObject settings = SettingsResolver.resolve(JsonParser.parseString(SETTINGS).getAsJsonObject());
+        BuildSettings buildSettings = new BuildSettings(List.of(".yml"), 2, true, MaterializationStrategy.Copy,
+                Long.MAX_VALUE, false, OutputFormat.Directory, SwapMode.Rename);
+        return new IncrementalBuilder(folder.resolve("default"), folder.resolve("built"), folder.resolve("manifest.json"),
+                folder.resolve("index.json"), buildSettings, new PlaceholdersUtils(settings));
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+}
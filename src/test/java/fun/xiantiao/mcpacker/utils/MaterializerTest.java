@@ -0,0 +1,41 @@
+package fun.xiantiao.mcpacker.utils;
+
+import fun.xiantiao.mcpacker.enums.MaterializationStrategy;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MaterializerTest {
+
+    @Test
+    void hardLinkErrorsDoNotFallBackToCopy(@TempDir Path folder) throws IOException {
+        Materializer materializer = new Materializer(MaterializationStrategy.HardLink);
+        assertThrows(NoSuchFileException.class, () -> materializer.materialize(folder.resolve("missing.txt"), folder.resolve("a.txt")));
+
+        // 之前的失败不影响之后的文件
+        Path source = folder.resolve("source.txt");
+        Files.writeString(source, "data");
+        Path destination = folder.resolve("b.txt");
+        assertFalse(materializer.materialize(source, destination));
+        assertTrue(Files.isSameFile(source, destination));
+    }
+
+    @Test
+    void transferAndCopyReplaceExistingTarget(@TempDir Path folder) throws IOException {
+        Path source = folder.resolve("source.txt");
+        Files.writeString(source, "x".repeat(100_000));
+        for (MaterializationStrategy strategy : new MaterializationStrategy[]{MaterializationStrategy.Transfer, MaterializationStrategy.Copy}) {
+            Path destination = folder.resolve(strategy.name() + ".txt");
+            Files.writeString(destination, "old");
+            assertTrue(new Materializer(strategy).materialize(source, destination));
+            assertEquals(Files.readString(source), Files.readString(destination));
+            assertFalse(Files.isSameFile(source, destination));
+        }
+    }
+}
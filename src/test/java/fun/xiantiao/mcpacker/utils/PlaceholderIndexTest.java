@@ -0,0 +1,46 @@
+package fun.xiantiao.mcpacker.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlaceholderIndexTest {
+
+    @Test
+    void offsetsPointAtTokenPrefix() {
+        String content = "a: $(mcp.a)\nport: \"$(mcp.x)(number)\"\nb: $(mcp.x)(number)";
+        PlaceholderIndex index = new PlaceholderIndex();
+        index.put("config.yml", PlaceholderRenderer.tokenize(content));
+
+        assertEquals(Map.of("config.yml", List.of((long) content.indexOf("$(mcp.a)"))), index.where("a"));
+        // 带引号的位置同样指向 $(mcp. 而不是引号
+        long quoted = content.indexOf("$(mcp.x)");
+        long unquoted = content.lastIndexOf("$(mcp.x)");
+        assertEquals(Map.of("config.yml", List.of(quoted, unquoted)), index.where("x"));
+    }
+
+    @Test
+    void saveAndLoad(@TempDir Path folder) throws IOException {
+        PlaceholderIndex index = new PlaceholderIndex();
+        index.put("a.yml", PlaceholderRenderer.tokenize("$(mcp.a) \"$(mcp.db.port)(number)\""));
+        index.put("b.yml", PlaceholderRenderer.tokenize("nothing"));
+        Path path = folder.resolve("index.json");
+
+        assertEquals(List.of("b", "unused"), index.save(path, Set.of("a", "b", "db.port", "unused")));
+
+        PlaceholderIndex loaded = PlaceholderIndex.load(path);
+        assertNotNull(loaded);
+        assertEquals(Map.of("a.yml", List.of(0L)), loaded.where("a"));
+        assertEquals(Map.of("a.yml", List.of(10L)), loaded.where("db.port"));
+        assertTrue(loaded.contains("b.yml"));
+        // 上级路径被使用时也算作使用
+        assertEquals(List.of("db"), loaded.unused(Set.of("a.child", "db")));
+    }
+}
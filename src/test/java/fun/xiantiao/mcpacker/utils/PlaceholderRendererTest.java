@@ -0,0 +1,227 @@
+package fun.xiantiao.mcpacker.utils;
+
+import fun.xiantiao.mcpacker.enums.PlaceholderType;
+import fun.xiantiao.mcpacker.records.PlaceholderToken;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * papi 替换的语料: 每条为 输入 -> 期望输出, 内存和流式两条路径结果必须一致
+ */
+class PlaceholderRendererTest {
+
+    private static final Map<String, String> VALUES = Map.of(
+            "a", "A",
+            "b", "B",
+            "x", "42",
+            "名字", "值",
+            "db.port", "3306");
+
+    private static final PlaceholderRenderer RENDERER = new PlaceholderRenderer(key -> {
+        String value = VALUES.get(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Unknown key: " + key);
+        }
+        return value;
+    });
+
+    // 输入, 期望输出
+    private static final String[][] CORPUS = {
+            // 普通 papi
+            {"host: $(mcp.a)", "host: A"},
+            {"port: $(mcp.db.port)", "port: 3306"},
+            {"$(mcp.a)", "A"},
+            // 带引号的 (number) 连同引号替换, 不带引号的保持原样
+            {"port: \"$(mcp.x)(number)\"", "port: 42"},
+            {"port: $(mcp.x)(number)", "port: $(mcp.x)(number)"},
+            {"port: \"$(mcp.x)(number)", "port: \"$(mcp.x)(number)"},
+            {"port: $(mcp.x)(number)\"", "port: $(mcp.x)(number)\""},
+            // 同一文件内同一个 key 两种形式都出现: 普通形式保持原样
+            {"a: $(mcp.x)\nb: \"$(mcp.x)(number)\"", "a: $(mcp.x)\nb: 42"},
+            {"a: $(mcp.x)\nb: $(mcp.x)(number)", "a: $(mcp.x)\nb: $(mcp.x)(number)"},
+            {"a: $(mcp.a)\nb: \"$(mcp.x)(number)\"", "a: A\nb: 42"},
+            // 未闭合
+            {"a: $(mcp.a", "a: $(mcp.a"},
+            {"$(mcp.a) then $(mcp.", "A then $(mcp."},
+            {"$(mcp.", "$(mcp."},
+            {"$(mcp", "$(mcp"},
+            // 相邻
+            {"$(mcp.a)$(mcp.b)", "AB"},
+            {"\"$(mcp.x)(number)\"\"$(mcp.x)(number)\"", "4242"},
+            {"$(mcp.a)(number)$(mcp.b)", "$(mcp.a)(number)B"},
+            // 空 key
+            {"$(mcp.)", "$(mcp.)"},
+            {"$(mcp.)$(mcp.a)", "$(mcp.)A"},
+            {"\"$(mcp.)(number)\"", "\"$(mcp.)(number)\""},
+            // 非 ASCII
+            {"名字: $(mcp.名字)", "名字: 值"},
+            {"\"$(mcp.名字)\" ✓ $(mcp.a)", "\"值\" ✓ A"},
+            // 没有 papi
+            {"", ""},
+            {"plain: $(other.a) $mcp.a (mcp.a)", "plain: $(other.a) $mcp.a (mcp.a)"},
+    };
+
+    @Test
+    void corpus() {
+        for (String[] entry : CORPUS) {
+            assertEquals(entry[1], RENDERER.render(entry[0]), () -> "input: " + entry[0]);
+        }
+    }
+
+    @Test
+    void corpusStreamingMatchesInMemory(@TempDir Path folder) throws IOException {
+        int i = 0;
+        for (String[] entry : CORPUS) {
+            Path source = folder.resolve("corpus-" + i++ + ".yml");
+            Files.writeString(source, entry[0]);
+            assertEquals(entry[1], renderFile(source, folder.resolve("memory.yml"), Long.MAX_VALUE, null), () -> "input: " + entry[0]);
+            assertEquals(entry[1], renderFile(source, folder.resolve("stream.yml"), 0, null), () -> "input: " + entry[0]);
+        }
+    }
+
+    @Test
+    void unchangedInputIsReturnedAsIs() {
+        String input = "port: $(mcp.x)(number)";
+        assertSame(input, RENDERER.render(input));
+    }
+
+    @Test
+    void unknownKeyFails() {
+        assertThrows(IllegalArgumentException.class, () -> RENDERER.render("$(mcp.missing)"));
+        // 不替换的形式也要取值
+        assertThrows(IllegalArgumentException.class, () -> RENDERER.render("$(mcp.missing)(number)"));
+    }
+
+    @Test
+    void nestedTokenUsesTextUpToFirstClose() {
+        List<PlaceholderToken> tokens = PlaceholderRenderer.tokenize("$(mcp.$(mcp.a))");
+        assertEquals(1, tokens.size());
+        assertEquals("$(mcp.a", tokens.get(0).placeholder().text());
+        assertEquals(0, tokens.get(0).start());
+        assertEquals(14, tokens.get(0).end());
+        assertThrows(IllegalArgumentException.class, () -> RENDERER.render("$(mcp.$(mcp.a))"));
+    }
+
+    @Test
+    void tokenPositions() {
+        List<PlaceholderToken> tokens = PlaceholderRenderer.tokenize("x $(mcp.a) \"$(mcp.x)(number)\" $(mcp.x)(number)");
+        assertEquals(3, tokens.size());
+
+        assertEquals(PlaceholderType.Text, tokens.get(0).placeholder().type());
+        assertEquals(2, tokens.get(0).start());
+        assertEquals(10, tokens.get(0).end());
+
+        // 带引号时区间包含两侧的引号
+        assertEquals(PlaceholderType.Number, tokens.get(1).placeholder().type());
+        assertTrue(tokens.get(1).quoted());
+        assertEquals(11, tokens.get(1).start());
+        assertEquals(29, tokens.get(1).end());
+
+        assertFalse(tokens.get(2).quoted());
+        assertEquals(30, tokens.get(2).start());
+        assertEquals(46, tokens.get(2).end());
+    }
+
+    @Test
+    void streamingMatchesInMemoryAcrossChunkBoundaries(@TempDir Path folder) throws IOException {
+        String tokens = "\"$(mcp.x)(number)\" $(mcp.名字) $(mcp.a)$(mcp.b) $(mcp.x)(number) $(mcp.)\n";
+        // 流式读取每块 64K 字符, 让 token 的每个位置都落在块的边界上
+        for (int shift = 0; shift <= tokens.length(); shift++) {
+            String input = "k".repeat(64 * 1024 - shift) + tokens + "x".repeat(100) + tokens + "$(mcp.a";
+            Path source = folder.resolve("shift-" + shift + ".yml");
+            Files.writeString(source, input);
+
+            List<PlaceholderToken> expectedTokens = new ArrayList<>();
+            String expected = RENDERER.render(input, expectedTokens);
+
+            List<PlaceholderToken> memoryTokens = new ArrayList<>();
+            assertEquals(expected, renderFile(source, folder.resolve("memory.yml"), Long.MAX_VALUE, memoryTokens));
+            assertEquals(expectedTokens, memoryTokens);
+
+            List<PlaceholderToken> streamTokens = new ArrayList<>();
+            int finalShift = shift;
+            assertEquals(expected, renderFile(source, folder.resolve("stream.yml"), 0, streamTokens), () -> "shift " + finalShift);
+            assertEquals(expectedTokens, streamTokens, () -> "shift " + finalShift);
+        }
+    }
+
+    @Test
+    void streamingBufferStaysBoundedAfterLastToken(@TempDir Path folder) throws IOException {
+        // 开头一个 token, 之后 32M 字符没有 papi (包含跨块的不完整 $(mcp), 缓冲区不能随文件增长
+        String head = "\"$(mcp.x)(number)\" $(mcp.a)\n";
+        String line = "k".repeat(100) + " $(mcp \"$(mc\n";
+        long length = 32L * 1024 * 1024;
+        Reader reader = new Reader() {
+            private long position = 0;
+
+            @Override
+            public int read(char[] buffer, int off, int len) {
+                if (position >= length) {
+                    return -1;
+                }
+                int count = (int) Math.min(len, length - position);
+                for (int i = 0; i < count; i++, position++) {
+                    buffer[off + i] = position < head.length() ? head.charAt((int) position)
+                            : line.charAt((int) ((position - head.length()) % line.length()));
+                }
+                return count;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        assertTrue(PlaceholderRenderer.maxBuffered(reader) <= 3 * 64 * 1024);
+
+        // 结果不受丢弃的影响
+        Path source = folder.resolve("large.yml");
+        Files.writeString(source, head + line.repeat(2000) + "$(mcp.b)");
+        assertEquals("42 A\n" + line.repeat(2000) + "B", renderFile(source, folder.resolve("large-out.yml"), 0, null));
+    }
+
+    @Test
+    void inPlaceStreaming(@TempDir Path folder) throws IOException {
+        Path file = folder.resolve("config.yml");
+        Files.writeString(file, "a: $(mcp.a)\nport: \"$(mcp.x)(number)\"\n");
+        assertEquals(2, RENDERER.renderFile(file, file, null, 0));
+        assertEquals("a: A\nport: 42\n", Files.readString(file));
+        assertFalse(Files.exists(folder.resolve("config.yml.mcp.tmp")));
+    }
+
+    @Test
+    void renderToCopiesFilesWithoutPlaceholdersAsBytes(@TempDir Path folder) throws IOException {
+        // 不是合法的 UTF-8, 经过解码会变成替换字符
+        byte[] latin1 = "café: $(mcx.a)\n".getBytes(StandardCharsets.ISO_8859_1);
+        Path file = folder.resolve("latin1.yml");
+        Files.write(file, latin1);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(0, RENDERER.renderTo(file, out, null, Long.MAX_VALUE));
+        assertArrayEquals(latin1, out.toByteArray());
+
+        Path templated = folder.resolve("templated.yml");
+        Files.writeString(templated, "名字: $(mcp.名字)\n");
+        out.reset();
+        assertEquals(1, RENDERER.renderTo(templated, out, null, 0));
+        assertEquals("名字: 值\n", out.toString(StandardCharsets.UTF_8));
+    }
+
+    private static String renderFile(Path source, Path target, long streamingThreshold,
+                                     List<PlaceholderToken> tokens) throws IOException {
+        Files.deleteIfExists(target);
+        RENDERER.renderFile(source, target, tokens, streamingThreshold);
+        return Files.readString(target, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,41 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlaceholdersUtilsTest {
+
+    @Test
+    void failedVariablesOnlyFailWhenRead(@TempDir Path folder) {
+        JsonObject settings = JsonParser.parseString("""
+                {
+                  "placeholder": {
+                    "providers": {"file": {"folder": "%s"}},
+                    "data": {
+                      "name": "lobby",
+                      "uuid": "$(random.uuid)",
+                      "missing": "$(file.missing.txt)"
+                    }
+                  }
+                }
+                """.formatted(folder.toString().replace("\\", "\\\\"))).getAsJsonObject();
+        PlaceholdersUtils placeholdersUtils = new PlaceholdersUtils(settings);
+
+        // 其他提供者的变量照常获取
+        assertEquals("lobby", placeholdersUtils.get("name"));
+        assertEquals(36, placeholdersUtils.get("uuid").length());
+        assertEquals(placeholdersUtils.get("uuid"), placeholdersUtils.get("uuid"));
+
+        assertNull(placeholdersUtils.getIfResolved("missing"));
+        UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> placeholdersUtils.get("missing"));
+        assertTrue(e.getMessage().contains("placeholder.data.missing"), e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> placeholdersUtils.get("unknown"));
+    }
+}
@@ -0,0 +1,132 @@
+package fun.xiantiao.mcpacker.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TarArchiveWriterTest {
+
+    /**
+     * 读出的条目, PAX 头中的 path 已合并到 name
+     */
+    record TarEntry(String name, char type, int mode, long lastModified, byte[] data) {
+    }
+
+    @Test
+    void filesAndDirectories(@TempDir Path folder) throws IOException {
+        Path tar = folder.resolve("built.tar.gz");
+        String longName = "servers/" + "a".repeat(120) + "/config.yml";
+        try (TarArchiveWriter writer = new TarArchiveWriter(tar)) {
+            writer.addDirectory("servers", 1_000_000, 0755);
+            writer.addDirectory("servers/empty/", 2_000_000, 0700);
+            writer.addEntry("servers/start.sh", 3, 3_000_000, 0755, stream("sh\n"));
+            writer.addEntry(longName, 5, 4_000_000, 0644, stream("a: 1\n"));
+            writer.addEntry("名字.yml", 0, 5_000_000, 0600, InputStream.nullInputStream());
+        }
+
+        List<TarEntry> entries = read(tar);
+        assertEquals(5, entries.size());
+
+        assertEntry(entries.get(0), "servers/", '5', 0755, "");
+        assertEntry(entries.get(1), "servers/empty/", '5', 0700, "");
+        assertEntry(entries.get(2), "servers/start.sh", '0', 0755, "sh\n");
+        assertEntry(entries.get(3), longName, '0', 0644, "a: 1\n");
+        assertEntry(entries.get(4), "名字.yml", '0', 0600, "");
+        assertEquals(3_000, entries.get(2).lastModified());
+    }
+
+    @Test
+    void shortDataFails(@TempDir Path folder) throws IOException {
+        try (TarArchiveWriter writer = new TarArchiveWriter(folder.resolve("built.tar.gz"))) {
+            assertThrows(IOException.class, () -> writer.addEntry("a.yml", 10, 0, 0644, stream("short")));
+        }
+    }
+
+    private static void assertEntry(TarEntry entry, String name, char type, int mode, String data) {
+        assertEquals(name, entry.name());
+        assertEquals(type, entry.type(), name);
+        assertEquals(mode, entry.mode(), name);
+        assertEquals(data, new String(entry.data(), StandardCharsets.UTF_8), name);
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 按 ustar 格式读出所有条目, 同时校验每个头的校验和
+     */
+    static List<TarEntry> read(Path tar) throws IOException {
+        List<TarEntry> entries = new ArrayList<>();
+        try (DataInputStream input = new DataInputStream(new GZIPInputStream(Files.newInputStream(tar)))) {
+            String paxPath = null;
+            byte[] header = new byte[512];
+            while (true) {
+                input.readFully(header);
+                if (header[0] == 0) {
+                    input.readFully(header); // 结尾的第二个空块
+                    assertThrows(EOFException.class, input::readByte);
+                    return entries;
+                }
+                assertEquals(octal(header, 148, 8), checksum(header));
+                long size = octal(header, 124, 12);
+                byte[] data = new byte[(int) size];
+                input.readFully(data);
+                input.readFully(new byte[(int) ((512 - size % 512) % 512)]);
+
+                char type = (char) header[156];
+                if (type == 'x') {
+                    paxPath = paxPath(new String(data, StandardCharsets.UTF_8));
+                    continue;
+                }
+                String name = paxPath != null ? paxPath : new String(header, 0, length(header, 0, 100), StandardCharsets.US_ASCII);
+                paxPath = null;
+                entries.add(new TarEntry(name, type, (int) octal(header, 100, 8), octal(header, 136, 12), data));
+            }
+        }
+    }
+
+    private static String paxPath(String records) {
+        for (String record : records.split("\n")) {
+            String keyValue = record.substring(record.indexOf(' ') + 1);
+            if (keyValue.startsWith("path=")) {
+                return keyValue.substring("path=".length());
+            }
+        }
+        return null;
+    }
+
+    private static long checksum(byte[] header) {
+        long checksum = 0;
+        for (int i = 0; i < header.length; i++) {
+            checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        }
+        return checksum;
+    }
+
+    private static long octal(byte[] header, int offset, int length) {
+        String text = new String(header, offset, length(header, offset, length), StandardCharsets.US_ASCII).trim();
+        return Long.parseLong(text, 8);
+    }
+
+    private static int length(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return end - offset;
+    }
+}
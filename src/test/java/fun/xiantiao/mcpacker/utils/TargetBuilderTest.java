@@ -0,0 +1,73 @@
+package fun.xiantiao.mcpacker.utils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import fun.xiantiao.mcpacker.enums.MaterializationStrategy;
+import fun.xiantiao.mcpacker.enums.OutputFormat;
+import fun.xiantiao.mcpacker.enums.SwapMode;
+import fun.xiantiao.mcpacker.records.BuildSettings;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TargetBuilderTest {
+
+    private static final String SETTINGS = """
+            {
+              "placeholder": {
+                "suffixes": [".yml"],
+                "data": {"name": "global", "port": 1},
+                "servers": {"lobby": {"port": 2}}
+              }
+            }
+            """;
+
+    @Test
+    void sharedLayerFollowsMaterialization(@TempDir Path folder) throws IOException {
+        for (MaterializationStrategy strategy : MaterializationStrategy.values()) {
+            Path root = folder.resolve(strategy.name().toLowerCase());
+            Path source = root.resolve("default");
+            write(source.resolve("files/name.yml"), "name: $(mcp.name)");
+            write(source.resolve("files/port.yml"), "port: $(mcp.port)");
+            write(source.resolve("servers/lobby/own.yml"), "own: $(mcp.port)");
+            write(source.resolve("servers/game/own.yml"), "own: $(mcp.port)");
+
+            Path target = root.resolve("built");
+            build(source, target, strategy);
+
+            assertEquals("name: global", Files.readString(target.resolve("servers/lobby/name.yml")));
+            assertEquals("port: 2", Files.readString(target.resolve("servers/lobby/port.yml")));
+            assertEquals("port: 1", Files.readString(target.resolve("servers/game/port.yml")));
+            assertEquals("own: 2", Files.readString(target.resolve("servers/lobby/own.yml")));
+
+            // 没有被覆盖的共享文件按设置放入服务端, 只有 hardlink 共用同一份数据
+            boolean linked = sameFile(target.resolve("files/name.yml"), target.resolve("servers/lobby/name.yml"));
+            assertEquals(strategy == MaterializationStrategy.HardLink, linked, strategy.name());
+        }
+    }
+
+    private static void build(Path source, Path target, MaterializationStrategy strategy) throws IOException {
+        JsonObject rawSettings = JsonParser.parseString(SETTINGS).getAsJsonObject();
+        BuildSettings buildSettings = new BuildSettings(List.of(".yml"), 2, false, strategy, Long.MAX_VALUE, true,
+                OutputFormat.Directory, SwapMode.Rename);
+        new TargetBuilder(source, target, target.resolveSibling("index.json"), buildSettings, rawSettings,
+                new PlaceholdersUtils(SettingsResolver.resolve(rawSettings))).build(null, null);
+    }
+
+    private static boolean sameFile(Path a, Path b) throws IOException {
+        Object key = Files.readAttributes(a, BasicFileAttributes.class).fileKey();
+        return key != null && key.equals(Files.readAttributes(b, BasicFileAttributes.class).fileKey());
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+}
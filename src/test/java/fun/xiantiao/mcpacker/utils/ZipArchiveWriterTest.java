@@ -0,0 +1,106 @@
+package fun.xiantiao.mcpacker.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ZipArchiveWriterTest {
+
+    @Test
+    void storedDeflatedAndDirectoryEntries(@TempDir Path folder) throws IOException {
+        byte[] script = "#!/bin/sh\n".getBytes(StandardCharsets.UTF_8);
+        byte[] config = "name: lobby\n".repeat(100).getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = deflate(config);
+
+        Path zip = folder.resolve("built.zip");
+        try (ZipArchiveWriter writer = new ZipArchiveWriter(zip)) {
+            writer.addDirectory("servers", 0, 0755);
+            writer.addDirectory("servers/empty/", 0, 0700);
+            writer.addEntry("servers/start.sh", ZipArchiveWriter.STORED, crc(script), script.length, script.length,
+                    System.currentTimeMillis(), 0755, new ByteArrayInputStream(script));
+            writer.addEntry("servers/名字.yml", ZipArchiveWriter.DEFLATED, crc(config), config.length, deflated.length,
+                    System.currentTimeMillis(), 0644, new ByteArrayInputStream(deflated));
+        }
+
+        // ZipFile 按中央目录读取, 读取内容时校验 CRC
+        try (ZipFile zipFile = new ZipFile(zip.toFile(), StandardCharsets.UTF_8)) {
+            assertEquals(List.of("servers/", "servers/empty/", "servers/start.sh", "servers/名字.yml"),
+                    zipFile.stream().map(ZipEntry::getName).toList());
+            assertTrue(zipFile.getEntry("servers/empty/").isDirectory());
+            assertArrayEquals(script, zipFile.getInputStream(zipFile.getEntry("servers/start.sh")).readAllBytes());
+            assertArrayEquals(config, zipFile.getInputStream(zipFile.getEntry("servers/名字.yml")).readAllBytes());
+        }
+
+        Map<String, Integer> attributes = unixAttributes(zip);
+        assertEquals(040755, attributes.get("servers/"));
+        assertEquals(040700, attributes.get("servers/empty/"));
+        assertEquals(0100755, attributes.get("servers/start.sh"));
+        assertEquals(0100644, attributes.get("servers/名字.yml"));
+    }
+
+    @Test
+    void shortDataFails(@TempDir Path folder) throws IOException {
+        try (ZipArchiveWriter writer = new ZipArchiveWriter(folder.resolve("built.zip"))) {
+            assertThrows(IOException.class, () -> writer.addEntry("a.yml", ZipArchiveWriter.STORED, 0, 10, 10, 0, 0644,
+                    new ByteArrayInputStream(new byte[5])));
+        }
+    }
+
+    /**
+     * 从中央目录读出每个条目的 unix 类型和权限 (外部属性的高 16 位), 同时检查创建系统为 unix
+     */
+    private static Map<String, Integer> unixAttributes(Path zip) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(zip)).order(ByteOrder.LITTLE_ENDIAN);
+        int end = buffer.limit() - 22; // 没有注释
+        assertEquals(0x06054b50, buffer.getInt(end));
+        int position = buffer.getInt(end + 16);
+
+        Map<String, Integer> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < buffer.getShort(end + 10); i++) {
+            assertEquals(0x02014b50, buffer.getInt(position));
+            assertEquals(3, (buffer.getShort(position + 4) >> 8) & 0xFF);
+            int nameLength = buffer.getShort(position + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(position + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(position + 32) & 0xFFFF;
+            String name = new String(buffer.array(), position + 46, nameLength, StandardCharsets.UTF_8);
+            attributes.put(name, buffer.getInt(position + 38) >>> 16);
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+        return attributes;
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(out, deflater)) {
+            deflaterOutputStream.write(data);
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+}